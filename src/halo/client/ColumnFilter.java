@@ -5,6 +5,7 @@ import halo.core.*;
 import org.apache.hadoop.hbase.filter.*;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Represents a filter condition that can be applied to an index
@@ -61,49 +62,42 @@ public class ColumnFilter {
         }
 
         ColumnProperty columnProperty = table.getTableProperty().getColumnProperty(icol);
+        byte[] qualifier = HaloTable.getColumnQualifier(icol);
         byte[] value = null;
 
         switch (operator) {
             case ColumnFilterOperator.LESS:
-                value = columnProperty.getDataType().valueOf(arguments);
-                return new SingleColumnValueFilter(HaloAdmin.PRIMARY_FAMILY, column.getBytes(),
-                        CompareFilter.CompareOp.LESS, value);
+                value = storedValue(table, icol, arguments);
+                return valueFilter(qualifier, CompareFilter.CompareOp.LESS, value);
 
             case ColumnFilterOperator.LESS_OR_EQUAL:
-                value = columnProperty.getDataType().valueOf(arguments);
-                return new SingleColumnValueFilter(HaloAdmin.PRIMARY_FAMILY, column.getBytes(),
-                        CompareFilter.CompareOp.LESS_OR_EQUAL, value);
+                value = storedValue(table, icol, arguments);
+                return valueFilter(qualifier, CompareFilter.CompareOp.LESS_OR_EQUAL, value);
 
             case ColumnFilterOperator.EQUAL:
-                value = columnProperty.getDataType().valueOf(arguments);
-                return new SingleColumnValueFilter(HaloAdmin.PRIMARY_FAMILY, column.getBytes(),
-                        CompareFilter.CompareOp.EQUAL, value);
+                value = storedValue(table, icol, arguments);
+                return valueFilter(qualifier, CompareFilter.CompareOp.EQUAL, value);
 
             case ColumnFilterOperator.NOT_EQUAL:
-                value = columnProperty.getDataType().valueOf(arguments);
-                return new SingleColumnValueFilter(HaloAdmin.PRIMARY_FAMILY, column.getBytes(),
-                        CompareFilter.CompareOp.NOT_EQUAL, value);
+                value = storedValue(table, icol, arguments);
+                return valueFilter(qualifier, CompareFilter.CompareOp.NOT_EQUAL, value);
 
             case ColumnFilterOperator.GREATER:
-                value = columnProperty.getDataType().valueOf(arguments);
-                return new SingleColumnValueFilter(HaloAdmin.PRIMARY_FAMILY, column.getBytes(),
-                        CompareFilter.CompareOp.GREATER, value);
+                value = storedValue(table, icol, arguments);
+                return valueFilter(qualifier, CompareFilter.CompareOp.GREATER, value);
 
             case ColumnFilterOperator.GREATER_OR_EQUAL:
-                value = columnProperty.getDataType().valueOf(arguments);
-                return new SingleColumnValueFilter(HaloAdmin.PRIMARY_FAMILY, column.getBytes(),
-                        CompareFilter.CompareOp.GREATER_OR_EQUAL, value);
+                value = storedValue(table, icol, arguments);
+                return valueFilter(qualifier, CompareFilter.CompareOp.GREATER_OR_EQUAL, value);
 
             case ColumnFilterOperator.BETWEEN_AND:
                 try {
                     FilterList list = new FilterList(FilterList.Operator.MUST_PASS_ALL);
                     BetweenAndArguments arguments = BetweenAndArguments.valueOf(this.arguments);
-                    byte[] startValue = columnProperty.getDataType().valueOf(arguments.getStartValue());
-                    byte[] stopValue = columnProperty.getDataType().valueOf(arguments.getStopValue());
-                    list.addFilter(new SingleColumnValueFilter(HaloAdmin.PRIMARY_FAMILY, column.getBytes(),
-                            CompareFilter.CompareOp.GREATER_OR_EQUAL, startValue));
-                    list.addFilter(new SingleColumnValueFilter(HaloAdmin.PRIMARY_FAMILY, column.getBytes(),
-                            CompareFilter.CompareOp.LESS_OR_EQUAL, stopValue));
+                    byte[] startValue = storedValue(table, icol, arguments.getStartValue());
+                    byte[] stopValue = storedValue(table, icol, arguments.getStopValue());
+                    list.addFilter(valueFilter(qualifier, CompareFilter.CompareOp.GREATER_OR_EQUAL, startValue));
+                    list.addFilter(valueFilter(qualifier, CompareFilter.CompareOp.LESS_OR_EQUAL, stopValue));
                     return list;
                 } catch (Exception e) {
                     throw new IOException(e.getMessage());
@@ -114,49 +108,86 @@ public class ColumnFilter {
         }
     }
 
+    /* Converts a value given as text to the form it is stored in. */
+    private static byte[] storedValue(HaloTable table, int column, byte[] text) throws IOException {
+        TableProperty tableProperty = table.getTableProperty();
+        return tableProperty.toStoredValue(column,
+                tableProperty.getColumnProperty(column).getDataType().valueOf(text));
+    }
+
+    /* Rows that don't have the column are filtered out as well. */
+    private static Filter valueFilter(byte[] qualifier, CompareFilter.CompareOp op, byte[] value) {
+        SingleColumnValueFilter filter = new SingleColumnValueFilter(
+                HaloAdmin.PRIMARY_FAMILY, qualifier, op, value);
+        filter.setFilterIfMissing(true);
+        return filter;
+    }
+
     public ColumnScans toColumnScans(HaloTable table) throws IOException {
         int icol = table.findColumn(column);
         if (icol == -1) {
             throw new IOException("Column " + column + " not found in table "
                     + table.getTableProperty().getName());
         }
+        return toColumnScans(table, icol, new byte[0][]);
+    }
 
-        ColumnProperty columnProperty = table.getTableProperty().getColumnProperty(icol);
-        ColumnScans columnScans = new ColumnScans(icol);
+    /**
+     * Makes the scans of an index whose key starts with columns of known
+     * values, followed by the column of this filter. Equality on the leading
+     * key columns and this filter together make contiguous key ranges.
+     * @param indexColumn Column that the index belongs to.
+     * @param prefix Stored values of the leading key columns.
+     */
+    public ColumnScans toColumnScans(HaloTable table, int indexColumn, byte[][] prefix) throws IOException {
+        TableProperty tableProperty = table.getTableProperty();
+        int[] keyColumns = tableProperty.getIndexKeyColumns(indexColumn);
+        int icol = table.findColumn(column);
+        if (prefix.length >= keyColumns.length || keyColumns[prefix.length] != icol) {
+            throw new IOException("Column " + column + " is not key column #" + prefix.length
+                    + " of the index of " + tableProperty.getColumnProperty(indexColumn).getLabel());
+        }
+
+        ColumnProperty[] key = tableProperty.getIndexKey(indexColumn);
+        byte[] first = prefix.length != 0 ? IndexKey.lowerKey(key, prefix) : null;
+        byte[] last = prefix.length != 0 ? IndexKey.upperKey(key, prefix) : null;
+        ColumnScans columnScans = new ColumnScans(indexColumn);
         byte[] value = null;
         switch (operator) {
             case ColumnFilterOperator.LESS:
-                value = columnProperty.getDataType().valueOf(arguments);
-                columnScans.add(null, Bytes.concat(value, RowId.LOWER_KEY));
+                value = storedValue(table, icol, arguments);
+                columnScans.add(first, IndexKey.lowerKey(key, append(prefix, value)));
                 break;
             case ColumnFilterOperator.LESS_OR_EQUAL:
-                value = columnProperty.getDataType().valueOf(arguments);
-                columnScans.add(null, Bytes.concat(value, RowId.UPPER_KEY));
+                value = storedValue(table, icol, arguments);
+                columnScans.add(first, IndexKey.upperKey(key, append(prefix, value)));
                 break;
             case ColumnFilterOperator.EQUAL:
-                value = columnProperty.getDataType().valueOf(arguments);
-                columnScans.add(Bytes.concat(value, RowId.LOWER_KEY), Bytes.concat(value, RowId.UPPER_KEY));
+                value = storedValue(table, icol, arguments);
+                columnScans.add(IndexKey.lowerKey(key, append(prefix, value)),
+                        IndexKey.upperKey(key, append(prefix, value)));
                 break;
             case ColumnFilterOperator.NOT_EQUAL:
-                value = columnProperty.getDataType().valueOf(arguments);
-                columnScans.add(null, Bytes.concat(value, RowId.LOWER_KEY));
-                columnScans.add(Bytes.concat(value, RowId.UPPER_KEY), null);
+                value = storedValue(table, icol, arguments);
+                columnScans.add(first, IndexKey.lowerKey(key, append(prefix, value)));
+                columnScans.add(IndexKey.upperKey(key, append(prefix, value)), last);
                 break;
             case ColumnFilterOperator.GREATER_OR_EQUAL:
-                value = columnProperty.getDataType().valueOf(arguments);
-                columnScans.add(Bytes.concat(value, RowId.LOWER_KEY), null);
+                value = storedValue(table, icol, arguments);
+                columnScans.add(IndexKey.lowerKey(key, append(prefix, value)), last);
                 break;
             case ColumnFilterOperator.GREATER:
-                value = columnProperty.getDataType().valueOf(arguments);
-                columnScans.add(Bytes.concat(value, RowId.UPPER_KEY), null);
+                value = storedValue(table, icol, arguments);
+                columnScans.add(IndexKey.upperKey(key, append(prefix, value)), last);
                 break;
             case ColumnFilterOperator.BETWEEN_AND:
                 try {
                     /* Both startValue and stopValue are included */
                     BetweenAndArguments baa = BetweenAndArguments.valueOf(arguments);
-                    byte[] startValue = columnProperty.getDataType().valueOf(baa.getStartValue());
-                    byte[] stopValue = columnProperty.getDataType().valueOf(baa.getStopValue());
-                    columnScans.add(Bytes.concat(startValue, RowId.LOWER_KEY), Bytes.concat(stopValue, RowId.UPPER_KEY));
+                    byte[] startValue = storedValue(table, icol, baa.getStartValue());
+                    byte[] stopValue = storedValue(table, icol, baa.getStopValue());
+                    columnScans.add(IndexKey.lowerKey(key, append(prefix, startValue)),
+                            IndexKey.upperKey(key, append(prefix, stopValue)));
                 } catch (Exception e) {
                     throw new IOException(e.getMessage());
                 }
@@ -167,4 +198,33 @@ public class ColumnFilter {
 
         return columnScans;
     }
+
+    /* Gets the stored value that this filter compares a column with, for EQUAL filters. */
+    public byte[] toStoredValue(HaloTable table) throws IOException {
+        int icol = table.findColumn(column);
+        if (icol == -1 || operator != ColumnFilterOperator.EQUAL) {
+            throw new IOException("Filter " + this + " doesn't fix the value of a column");
+        }
+        return storedValue(table, icol, arguments);
+    }
+
+    private static byte[][] append(byte[][] prefix, byte[] value) {
+        byte[][] values = Arrays.copyOf(prefix, prefix.length + 1);
+        values[prefix.length] = value;
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        if (operator == ColumnFilterOperator.BETWEEN_AND) {
+            try {
+                BetweenAndArguments baa = BetweenAndArguments.valueOf(arguments);
+                return column + " BETWEEN " + Bytes.toString(baa.getStartValue())
+                        + " AND " + Bytes.toString(baa.getStopValue());
+            } catch (InvalidArgument e) {
+                return column + " BETWEEN ?";
+            }
+        }
+        return column + " " + ColumnFilterOperator.toString(operator) + " " + Bytes.toString(arguments);
+    }
 }
@@ -45,4 +45,28 @@ public final class ColumnFilterOperator {
         }
         throw new InvalidArgument("Unknown binary filter operator: " + op);
     }
+
+    /**
+     * Gets the SQL symbol of an operator.
+     */
+    public static String toString(int op) {
+        switch (op) {
+            case LESS:
+                return "<";
+            case LESS_OR_EQUAL:
+                return "<=";
+            case EQUAL:
+                return "=";
+            case NOT_EQUAL:
+                return "!=";
+            case GREATER_OR_EQUAL:
+                return ">=";
+            case GREATER:
+                return ">";
+            case BETWEEN_AND:
+                return "BETWEEN";
+            default:
+                return "?";
+        }
+    }
 }
@@ -1,12 +1,12 @@
 package halo.client;
 
-import halo.core.ColumnScans;
 import halo.core.HaloTable;
 import halo.core.RowSet;
-import org.apache.hadoop.hbase.client.Scan;
-import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
 
 import java.io.IOException;
+import java.util.TreeSet;
 
 /**
  * Created by riz on 14-7-2.
@@ -16,11 +16,16 @@ public class ColumnFilterTree {
     public static final int OR = 0;
     public static final int AND = 1;
 
+    /**
+     * Child results are combined with RowBitmap instead of sorted merge
+     * when they are estimated to hold at least this many rows.
+     */
+    public static final long BITMAP_THRESHOLD = RowSet.BUFFER_SIZE;
+
     private ColumnFilterTree leftChild;
     private int connector;
     private ColumnFilterTree rightChild;
     private ColumnFilter columnFilter;
-    private ColumnScans columnScans;
 
     /**
      * Constructs an empty node
@@ -93,47 +98,79 @@ public class ColumnFilterTree {
         this.columnFilter = columnFilter;
     }
 
-    private void buildScans(HaloTable table) throws IOException {
-        if (isLeafNode()){
-            columnScans = columnFilter.toColumnScans(table);
-        } else {
-            leftChild.buildScans(table);
-            rightChild.buildScans(table);
-
-            if (leftChild.columnScans != null && rightChild.columnScans != null &&
-                    leftChild.columnScans.isMergable(rightChild.columnScans)){
-                columnScans = connector == OR ?
-                        leftChild.columnScans.unionMerge(rightChild.columnScans) :
-                        leftChild.columnScans.intersectMerge(rightChild.columnScans);
-            } else {
-                columnScans = null;
-            }
+    /**
+     * Makes a primary table filter equivalent to this tree.
+     */
+    public Filter toPrimaryFilter(HaloTable table) throws IOException {
+        if (isLeafNode()) {
+            return columnFilter.toPrimaryFilter(table);
         }
+        FilterList list = new FilterList(connector == OR ?
+                FilterList.Operator.MUST_PASS_ONE : FilterList.Operator.MUST_PASS_ALL);
+        list.addFilter(leftChild.toPrimaryFilter(table));
+        list.addFilter(rightChild.toPrimaryFilter(table));
+        return list;
     }
 
-    private RowSet applyScans(HaloTable table) throws IOException {
-        if (isEmpty()){
-            Scan scan = new Scan();
-            /**
-             *  Actually we donot want any KV's, we need only the RowKey.
-             *  Using a FirstKeyOnlyFilter here will speed up the scan process.
-             */
-            scan.setFilter(new FirstKeyOnlyFilter());
-            return table.scanPrimary(scan);
+    /**
+     * Gets the columns that this tree looks at, in ascending order.
+     */
+    public int[] getColumns(HaloTable table) throws IOException {
+        TreeSet<Integer> columns = new TreeSet<Integer>();
+        collectColumns(table, columns);
+        int[] result = new int[columns.size()];
+        int i = 0;
+        for (int column : columns) {
+            result[i++] = column;
         }
+        return result;
+    }
 
-        if (columnScans != null){
-            return table.scan(columnScans);
+    private void collectColumns(HaloTable table, TreeSet<Integer> columns) throws IOException {
+        if (isLeafNode()) {
+            int column = table.findColumn(columnFilter.getColumn());
+            if (column == -1) {
+                throw new IOException("Column " + columnFilter.getColumn() + " not found in table "
+                        + table.getTableProperty().getName());
+            }
+            columns.add(column);
+        } else if (!isEmpty()) {
+            leftChild.collectColumns(table, columns);
+            rightChild.collectColumns(table, columns);
         }
+    }
 
-        RowSet left = leftChild.applyToTable(table);
-        RowSet right = rightChild.applyToTable(table);
-        return connector == OR ? left.union(right) : left.intersect(right);
+    /* Makes an execution plan of this tree for a table. */
+    public QueryPlan plan(HaloTable table) throws IOException {
+        return new QueryPlanner(table).plan(this);
+    }
+
+    /* Makes an execution plan of this tree for a query of the selected columns. */
+    public QueryPlan plan(HaloTable table, int[] selectedCols) throws IOException {
+        return new QueryPlanner(table).plan(this, selectedCols);
     }
 
     public RowSet applyToTable(HaloTable table) throws IOException {
-        buildScans(table);
-        return applyScans(table);
+        return applyToTable(table, 1);
     }
-}
 
+    /**
+     * Applies this filter tree to a table.
+     * @param parallelism Maximum number of threads that evaluate independent
+     *                    subtrees at the same time, 1 for sequential evaluation.
+     */
+    public RowSet applyToTable(HaloTable table, int parallelism) throws IOException {
+        return plan(table).execute(table, parallelism);
+    }
+
+    @Override
+    public String toString() {
+        if (isLeafNode()) {
+            return columnFilter.toString();
+        }
+        if (isEmpty()) {
+            return "";
+        }
+        return "(" + leftChild + (connector == OR ? " OR " : " AND ") + rightChild + ")";
+    }
+}
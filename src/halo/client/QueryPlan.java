@@ -0,0 +1,486 @@
+package halo.client;
+
+import halo.core.Aggregate;
+import halo.core.ColumnScans;
+import halo.core.HaloAdmin;
+import halo.core.HaloTable;
+import halo.core.QueryResult;
+import halo.core.RowBitmap;
+import halo.core.RowSet;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * An executable plan that finds rows matching a ColumnFilterTree.
+ * Plans are made by QueryPlanner, see WhereClause.explain().
+ */
+public class QueryPlan {
+    /* Range scan over an index table */
+    public static final int INDEX_SCAN = 1;
+    /* Full scan over the primary table with server side filters */
+    public static final int PRIMARY_SCAN = 2;
+    /* Rows from the child plan are checked against a filter with Gets */
+    public static final int INDEX_SCAN_WITH_RESIDUAL = 3;
+    /* Rows in both child plans */
+    public static final int INTERSECT = 4;
+    /* Rows in either child plan */
+    public static final int UNION = 5;
+    /* Range scan over an index table that also holds all selected columns */
+    public static final int COVERING_INDEX_SCAN = 6;
+
+    /**
+     * Shared by parallel executions, the number of threads a query may use
+     * is limited by the parallelism of its Evaluation.
+     */
+    private static final ExecutorService EVALUATOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "halo-query-plan");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * State of one execution of a plan.
+     * A child plan is forked to another thread only if a permit is
+     * available, otherwise it is executed by the current thread. If one
+     * child fails all the other forked children are cancelled, and the
+     * rows of those that have finished but are not claimed yet are
+     * released.
+     */
+    private static class Evaluation {
+        private Semaphore permits;
+        private ArrayList<Future<RowSet>> forked;
+        private Set<RowSet> unclaimed;
+        private volatile Throwable failure;
+
+        Evaluation(int parallelism) {
+            /* The calling thread takes one */
+            permits = new Semaphore(Math.max(parallelism - 1, 0));
+            forked = new ArrayList<Future<RowSet>>();
+            unclaimed = Collections.newSetFromMap(new IdentityHashMap<RowSet, Boolean>());
+        }
+
+        Future<RowSet> tryFork(final QueryPlan plan, final HaloTable table) {
+            if (failure != null || !permits.tryAcquire()) {
+                return null;
+            }
+            Future<RowSet> future = EVALUATOR.submit(new Callable<RowSet>() {
+                @Override
+                public RowSet call() throws Exception {
+                    try {
+                        return finish(plan.execute(table, Evaluation.this));
+                    } catch (Exception e) {
+                        fail(e);
+                        throw e;
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+            synchronized (this) {
+                forked.add(future);
+            }
+            return future;
+        }
+
+        /* Holds the rows of a forked child until its parent claims them. */
+        private synchronized RowSet finish(RowSet rows) throws IOException {
+            if (failure != null) {
+                rows.release();
+                checkFailure();
+            }
+            unclaimed.add(rows);
+            return rows;
+        }
+
+        /* Takes the rows of a forked child, fails if they were released by fail(). */
+        synchronized RowSet claim(RowSet rows) throws IOException {
+            if (!unclaimed.remove(rows)) {
+                checkFailure();
+            }
+            return rows;
+        }
+
+        synchronized void fail(Throwable e) {
+            if (failure == null) {
+                failure = e;
+            }
+            for (Future<RowSet> f : forked) {
+                f.cancel(true);
+            }
+            for (RowSet rows : unclaimed) {
+                rows.release();
+            }
+            unclaimed.clear();
+        }
+
+        /* Stops evaluation early if another child has failed. */
+        void checkFailure() throws IOException {
+            if (failure != null) {
+                throw new IOException("Cancelled by failure of another subtree", failure);
+            }
+        }
+    }
+
+    private int strategy;
+    private ColumnFilterTree source;
+    private double selectivity;
+    private double cost;
+    private ColumnScans columnScans;
+    private ColumnFilterTree filterSource;
+    private Filter filter;
+    private int[] filterColumns;
+    private QueryPlan left;
+    private QueryPlan right;
+
+    private QueryPlan(int strategy, ColumnFilterTree source, double selectivity, double cost) {
+        this.strategy = strategy;
+        this.source = source;
+        this.selectivity = selectivity;
+        this.cost = cost;
+    }
+
+    static QueryPlan indexScan(ColumnFilterTree source, ColumnScans columnScans,
+                               double selectivity, double cost) {
+        QueryPlan plan = new QueryPlan(INDEX_SCAN, source, selectivity, cost);
+        plan.columnScans = columnScans;
+        return plan;
+    }
+
+    static QueryPlan coveringScan(ColumnFilterTree source, ColumnScans columnScans,
+                                  double selectivity, double cost) {
+        QueryPlan plan = new QueryPlan(COVERING_INDEX_SCAN, source, selectivity, cost);
+        plan.columnScans = columnScans;
+        return plan;
+    }
+
+    /**
+     * @param filter Filter applied to the primary table, null to return all rows.
+     * @param filterColumns Columns that the filter looks at.
+     */
+    static QueryPlan primaryScan(ColumnFilterTree source, Filter filter, int[] filterColumns,
+                                 double selectivity, double cost) {
+        QueryPlan plan = new QueryPlan(PRIMARY_SCAN, source, selectivity, cost);
+        plan.filterSource = filter != null ? source : null;
+        plan.filter = filter;
+        plan.filterColumns = filterColumns;
+        return plan;
+    }
+
+    /**
+     * @param filterSource The part of source checked by filter.
+     */
+    static QueryPlan residual(ColumnFilterTree source, QueryPlan child, ColumnFilterTree filterSource,
+                              Filter filter, int[] filterColumns, double selectivity, double cost) {
+        QueryPlan plan = new QueryPlan(INDEX_SCAN_WITH_RESIDUAL, source, selectivity, cost);
+        plan.left = child;
+        plan.filterSource = filterSource;
+        plan.filter = filter;
+        plan.filterColumns = filterColumns;
+        return plan;
+    }
+
+    static QueryPlan combine(int strategy, ColumnFilterTree source, QueryPlan left, QueryPlan right,
+                             double selectivity, double cost) {
+        QueryPlan plan = new QueryPlan(strategy, source, selectivity, cost);
+        plan.left = left;
+        plan.right = right;
+        return plan;
+    }
+
+    /**
+     * Gets one of INDEX_SCAN, PRIMARY_SCAN, INDEX_SCAN_WITH_RESIDUAL, INTERSECT,
+     * UNION and COVERING_INDEX_SCAN.
+     */
+    public int getStrategy() {
+        return strategy;
+    }
+
+    /* Gets the part of the filter tree answered by this plan. */
+    public ColumnFilterTree getSource() {
+        return source;
+    }
+
+    /* Gets the estimated fraction of table rows returned by this plan. */
+    public double getSelectivity() {
+        return selectivity;
+    }
+
+    /* Gets the estimated cost, in units of reading one index row per table row. */
+    public double getCost() {
+        return cost;
+    }
+
+    /* Gets the index ranges scanned by an INDEX_SCAN or COVERING_INDEX_SCAN plan. */
+    public ColumnScans getColumnScans() {
+        return columnScans;
+    }
+
+    /* Gets the filter of a PRIMARY_SCAN or INDEX_SCAN_WITH_RESIDUAL plan. */
+    public Filter getFilter() {
+        return filter;
+    }
+
+    /* Gets the child plan of INDEX_SCAN_WITH_RESIDUAL, or the left child of INTERSECT and UNION. */
+    public QueryPlan getLeft() {
+        return left;
+    }
+
+    /* Gets the right child of INTERSECT and UNION. */
+    public QueryPlan getRight() {
+        return right;
+    }
+
+    public static String strategyName(int strategy) {
+        switch (strategy) {
+            case INDEX_SCAN:
+                return "INDEX_SCAN";
+            case PRIMARY_SCAN:
+                return "PRIMARY_SCAN";
+            case INDEX_SCAN_WITH_RESIDUAL:
+                return "INDEX_SCAN_WITH_RESIDUAL";
+            case INTERSECT:
+                return "INTERSECT";
+            case UNION:
+                return "UNION";
+            case COVERING_INDEX_SCAN:
+                return "COVERING_INDEX_SCAN";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    /**
+     * Describes this plan, one node per line, children are indented.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        describe(sb, 0);
+        return sb.toString();
+    }
+
+    private void describe(StringBuilder sb, int depth) {
+        for (int i = 0; i < depth; ++i) {
+            sb.append("  ");
+        }
+        sb.append(strategyName(strategy));
+        switch (strategy) {
+            case INDEX_SCAN:
+            case COVERING_INDEX_SCAN:
+                sb.append(" column #").append(columnScans.getColumn())
+                        .append(", ").append(columnScans.getSegments().size()).append(" segment(s)");
+                break;
+            case PRIMARY_SCAN:
+            case INDEX_SCAN_WITH_RESIDUAL:
+                sb.append(" filter: ").append(filterSource == null ? "none" : filterSource.toString());
+                break;
+            default:
+                break;
+        }
+        sb.append(String.format(" (selectivity=%.4f, cost=%.4f)", selectivity, cost)).append('\n');
+        if (left != null) {
+            left.describe(sb, depth + 1);
+        }
+        if (right != null) {
+            right.describe(sb, depth + 1);
+        }
+    }
+
+    /**
+     * Executes this plan.
+     * @param parallelism Maximum number of threads that execute independent
+     *                    child plans at the same time, 1 for sequential execution.
+     * @return Rows matching the source filter tree.
+     */
+    public RowSet execute(HaloTable table, int parallelism) throws IOException {
+        return execute(table, new Evaluation(parallelism));
+    }
+
+    /**
+     * Executes this plan and reads the selected columns of the matching
+     * rows. A COVERING_INDEX_SCAN plan reads them from the index table,
+     * other plans fetch them from the primary table.
+     */
+    public QueryResult select(HaloTable table, int[] selectedCols, int parallelism) throws IOException {
+        if (strategy == COVERING_INDEX_SCAN) {
+            return table.selectFromIndex(selectedCols, columnScans);
+        }
+
+        RowSet rows = execute(table, parallelism);
+        try {
+            return table.select(selectedCols, rows);
+        } finally {
+            rows.release();
+        }
+    }
+
+    /**
+     * Executes this plan and counts the matching rows. Index scans count
+     * the index keys in range without reading any row, a PRIMARY_SCAN plan
+     * without a filter counts all rows, see HaloTable.countRows().
+     */
+    public long count(HaloTable table, int parallelism) throws IOException {
+        if (strategy == INDEX_SCAN || strategy == COVERING_INDEX_SCAN) {
+            return table.count(columnScans);
+        }
+        if (strategy == PRIMARY_SCAN && filter == null) {
+            return table.countRows();
+        }
+
+        RowSet rows = execute(table, parallelism);
+        try {
+            return rows.size();
+        } finally {
+            rows.release();
+        }
+    }
+
+    /**
+     * Executes this plan and folds the values of a column in the matching
+     * rows into an aggregate. Values come from the index keys when this is
+     * an index scan of the column, from one filtered scan of the primary
+     * table for a PRIMARY_SCAN plan, and through a cursor over the matching
+     * rows otherwise.
+     */
+    public void aggregate(HaloTable table, Aggregate aggregate, int column, int parallelism) throws IOException {
+        if ((strategy == INDEX_SCAN || strategy == COVERING_INDEX_SCAN) && columnScans.getColumn() == column) {
+            table.aggregate(aggregate, columnScans);
+            return;
+        }
+        if (strategy == PRIMARY_SCAN) {
+            table.aggregatePrimary(aggregate, column, filter, filterColumns);
+            return;
+        }
+
+        RowSet rows = execute(table, parallelism);
+        try {
+            table.aggregate(aggregate, column, rows);
+        } finally {
+            rows.release();
+        }
+    }
+
+    private RowSet execute(HaloTable table, Evaluation evaluation) throws IOException {
+        evaluation.checkFailure();
+        switch (strategy) {
+            case INDEX_SCAN:
+            case COVERING_INDEX_SCAN:
+                return table.scan(columnScans);
+
+            case PRIMARY_SCAN: {
+                Scan scan = new Scan();
+                if (filter == null) {
+                    /**
+                     *  Actually we donot want any KV's, we need only the RowKey.
+                     *  Using a FirstKeyOnlyFilter here will speed up the scan process.
+                     */
+                    scan.setFilter(new FirstKeyOnlyFilter());
+                } else {
+                    for (int col : filterColumns) {
+                        scan.addColumn(HaloAdmin.PRIMARY_FAMILY, HaloTable.getColumnQualifier(col));
+                    }
+                    scan.setFilter(filter);
+                }
+                return table.scanPrimary(scan);
+            }
+
+            case INDEX_SCAN_WITH_RESIDUAL: {
+                RowSet candidates = left.execute(table, evaluation);
+                try {
+                    return table.filterRows(candidates, filter, filterColumns);
+                } finally {
+                    candidates.release();
+                }
+            }
+
+            case INTERSECT:
+            case UNION:
+                return executeChildren(table, evaluation);
+
+            default:
+                throw new IOException("Unknown plan strategy, id=" + strategy);
+        }
+    }
+
+    private RowSet executeChildren(HaloTable table, Evaluation evaluation) throws IOException {
+        RowSet l;
+        RowSet r;
+        Future<RowSet> forked = evaluation.tryFork(left, table);
+        if (forked == null) {
+            l = left.execute(table, evaluation);
+            try {
+                r = right.execute(table, evaluation);
+            } catch (IOException e) {
+                l.release();
+                throw e;
+            }
+        } else {
+            try {
+                r = right.execute(table, evaluation);
+            } catch (IOException e) {
+                evaluation.fail(e);
+                throw e;
+            } catch (RuntimeException e) {
+                evaluation.fail(e);
+                throw e;
+            }
+            try {
+                l = evaluation.claim(waitFor(forked));
+            } catch (IOException e) {
+                r.release();
+                throw e;
+            }
+        }
+
+        RowSet result = combine(l, r);
+        l.release();
+        r.release();
+        return result;
+    }
+
+    private RowSet combine(RowSet l, RowSet r) {
+        boolean union = strategy == UNION;
+        long estimated = union ? l.size() + r.size() : Math.min(l.size(), r.size());
+        if (estimated < ColumnFilterTree.BITMAP_THRESHOLD) {
+            return union ? l.union(r) : l.intersect(r);
+        }
+
+        /* Dense row ids, set algebra on bitmaps is cheaper than sorting */
+        RowBitmap bitmap = RowBitmap.valueOf(l);
+        if (union) {
+            bitmap.or(RowBitmap.valueOf(r));
+        } else {
+            bitmap.and(RowBitmap.valueOf(r));
+        }
+        return bitmap.toRowSet();
+    }
+
+    private static RowSet waitFor(Future<RowSet> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw new InterruptedIOException(e.getMessage());
+        } catch (CancellationException e) {
+            throw new IOException("Subtree evaluation cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
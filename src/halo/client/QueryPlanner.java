@@ -0,0 +1,348 @@
+package halo.client;
+
+import halo.core.ColumnScans;
+import halo.core.ColumnStatistics;
+import halo.core.DataType;
+import halo.core.HaloTable;
+import halo.core.TableProperty;
+import halo.core.TableStatistics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses how a ColumnFilterTree is evaluated against a table.
+ *
+ * Every node gets the cheapest of the applicable strategies: an index
+ * range scan, a filtered scan of the primary table, or (for AND) a scan
+ * of one side followed by checking the other side as a residual filter.
+ * Costs are estimated from the selectivity of each filter and are
+ * relative to reading one index row per table row.
+ *
+ * Selectivities come from the column statistics gathered by
+ * HaloAdmin.analyze(), or from fixed defaults for columns that have not
+ * been analyzed. Conjuncts of an AND chain are combined from the most
+ * selective one on, so that residual filters are checked on as few
+ * rows as possible.
+ *
+ * Conjuncts that fix the leading columns of a composite index with
+ * equality, followed by any comparison of the next key column, are
+ * answered together by one range scan of that index.
+ */
+public class QueryPlanner {
+    /* Cost of reading one index row */
+    public static final double INDEX_ROW_COST = 1.0;
+    /* Cost of scanning one primary table row */
+    public static final double PRIMARY_ROW_COST = 1.5;
+    /* Cost of fetching one primary table row by a Get */
+    public static final double RANDOM_GET_COST = 8.0;
+    /* Cost of merging one row into an intersection or union */
+    public static final double COMBINE_ROW_COST = 0.1;
+
+    /* Selectivities assumed when nothing is known about a column */
+    public static final double EQUAL_SELECTIVITY = 0.05;
+    public static final double RANGE_SELECTIVITY = 0.3;
+    public static final double BETWEEN_SELECTIVITY = 0.15;
+
+    private HaloTable table;
+
+    public QueryPlanner(HaloTable table) {
+        this.table = table;
+    }
+
+    public QueryPlan plan(ColumnFilterTree tree) throws IOException {
+        if (tree.isEmpty()) {
+            return QueryPlan.primaryScan(tree, null, new int[0], 1.0, PRIMARY_ROW_COST);
+        }
+        return planNode(tree);
+    }
+
+    /**
+     * Plans a query that reads the selected columns of the matching rows.
+     * An index scan whose index covers the selected columns is turned into
+     * a COVERING_INDEX_SCAN, which saves fetching every row by a Get. All
+     * rows of a table are read from a covering index as well.
+     */
+    public QueryPlan plan(ColumnFilterTree tree, int[] selectedCols) throws IOException {
+        if (tree.isEmpty() && selectedCols.length != 0) {
+            int column = selectedCols[0];
+            if (table.getTableProperty().isCovering(column, selectedCols)) {
+                ColumnScans all = new ColumnScans(column).add(null, null);
+                return QueryPlan.coveringScan(tree, all, 1.0, INDEX_ROW_COST);
+            }
+        }
+
+        QueryPlan plan = plan(tree);
+        if (plan.getStrategy() == QueryPlan.INDEX_SCAN
+                && table.getTableProperty().isCovering(plan.getColumnScans().getColumn(), selectedCols)) {
+            return QueryPlan.coveringScan(plan.getSource(), plan.getColumnScans(),
+                    plan.getSelectivity(), plan.getCost());
+        }
+        return plan;
+    }
+
+    /**
+     * Estimates the fraction of table rows that pass a filter.
+     */
+    public double estimateSelectivity(ColumnFilter filter) throws IOException {
+        int column = findColumn(filter);
+        TableStatistics statistics = table.getTableProperty().getStatistics();
+        ColumnStatistics columnStatistics =
+                statistics != null ? statistics.getColumnStatistics(column) : null;
+        if (columnStatistics != null) {
+            TableProperty tableProperty = table.getTableProperty();
+            DataType dataType = tableProperty.getColumnProperty(column).getDataType();
+            try {
+                if (filter.getOperator() == ColumnFilterOperator.BETWEEN_AND) {
+                    BetweenAndArguments baa = BetweenAndArguments.valueOf(filter.getArguments());
+                    return columnStatistics.estimateSelectivity(filter.getOperator(),
+                            tableProperty.toStoredValue(column, dataType.valueOf(baa.getStartValue())),
+                            tableProperty.toStoredValue(column, dataType.valueOf(baa.getStopValue())),
+                            statistics.getRowCount());
+                }
+                return columnStatistics.estimateSelectivity(filter.getOperator(),
+                        tableProperty.toStoredValue(column, dataType.valueOf(filter.getArguments())),
+                        null, statistics.getRowCount());
+            } catch (Exception e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        switch (filter.getOperator()) {
+            case ColumnFilterOperator.EQUAL:
+                return EQUAL_SELECTIVITY;
+            case ColumnFilterOperator.NOT_EQUAL:
+                return 1.0 - EQUAL_SELECTIVITY;
+            case ColumnFilterOperator.BETWEEN_AND:
+                return BETWEEN_SELECTIVITY;
+            default:
+                return RANGE_SELECTIVITY;
+        }
+    }
+
+    private QueryPlan planNode(ColumnFilterTree node) throws IOException {
+        if (node.isLeafNode()) {
+            return planLeaf(node);
+        }
+
+        if (node.getConnector() == ColumnFilterTree.AND) {
+            return planConjunction(node);
+        }
+
+        QueryPlan left = planNode(node.getLeftChild());
+        QueryPlan right = planNode(node.getRightChild());
+        return planOr(node, left, right);
+    }
+
+    /**
+     * Plans a chain of AND nodes. Conjuncts matching a composite index key
+     * are taken first, index scans of the same column are merged next, the
+     * remaining conjuncts are then combined in ascending order of selectivity.
+     */
+    private QueryPlan planConjunction(ColumnFilterTree node) throws IOException {
+        ArrayList<ColumnFilterTree> conjuncts = new ArrayList<ColumnFilterTree>();
+        collectConjuncts(node, conjuncts);
+
+        ArrayList<QueryPlan> plans = new ArrayList<QueryPlan>(conjuncts.size());
+        QueryPlan composite = planCompositeKey(conjuncts);
+        if (composite != null) {
+            plans.add(composite);
+        }
+        for (ColumnFilterTree conjunct : conjuncts) {
+            QueryPlan plan = planNode(conjunct);
+            boolean merged = false;
+            for (int i = 0; i < plans.size() && !merged; ++i) {
+                if (isMergable(plans.get(i), plan)) {
+                    plans.set(i, planAnd(and(plans.get(i), plan), plans.get(i), plan));
+                    merged = true;
+                }
+            }
+            if (!merged) {
+                plans.add(plan);
+            }
+        }
+
+        Collections.sort(plans, new Comparator<QueryPlan>() {
+            @Override
+            public int compare(QueryPlan o1, QueryPlan o2) {
+                return Double.compare(o1.getSelectivity(), o2.getSelectivity());
+            }
+        });
+
+        QueryPlan result = plans.get(0);
+        for (int i = 1; i < plans.size(); ++i) {
+            result = planAnd(and(result, plans.get(i)), result, plans.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the composite index whose key matches the most conjuncts:
+     * equality on the leading key columns, then any comparison but
+     * NOT_EQUAL on the next key column. The matched conjuncts are removed.
+     * @return A scan of one key range per segment, or null when no index
+     *         matches two or more key columns.
+     */
+    private QueryPlan planCompositeKey(List<ColumnFilterTree> conjuncts) throws IOException {
+        TableProperty tableProperty = table.getTableProperty();
+        ArrayList<ColumnFilterTree> best = null;
+        int bestColumn = -1;
+        for (int column = 0; column < tableProperty.getNumberOfColumns(); ++column) {
+            if (!tableProperty.getColumnProperty(column).isIndexReady()) {
+                continue;
+            }
+            int[] key = tableProperty.getIndexKeyColumns(column);
+            ArrayList<ColumnFilterTree> matched = new ArrayList<ColumnFilterTree>();
+            for (int k = 0; k < key.length; ++k) {
+                ColumnFilterTree equal = findLeaf(conjuncts, key[k], true);
+                if (equal == null) {
+                    ColumnFilterTree range = findLeaf(conjuncts, key[k], false);
+                    if (range != null) {
+                        matched.add(range);
+                    }
+                    break;
+                }
+                matched.add(equal);
+            }
+            if (matched.size() >= 2 && (best == null || matched.size() > best.size())) {
+                best = matched;
+                bestColumn = column;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+
+        byte[][] prefix = new byte[best.size() - 1][];
+        double selectivity = 1.0;
+        ColumnFilterTree source = null;
+        for (int i = 0; i < best.size(); ++i) {
+            ColumnFilter filter = best.get(i).getColumnFilter();
+            if (i < prefix.length) {
+                prefix[i] = filter.toStoredValue(table);
+            }
+            selectivity *= estimateSelectivity(filter);
+            source = source == null ? best.get(i) : new ColumnFilterTree(source, ColumnFilterTree.AND, best.get(i));
+        }
+        conjuncts.removeAll(best);
+
+        ColumnScans columnScans = best.get(prefix.length).getColumnFilter()
+                .toColumnScans(table, bestColumn, prefix);
+        return QueryPlan.indexScan(source, columnScans, selectivity, selectivity * INDEX_ROW_COST);
+    }
+
+    /* Finds a leaf conjunct on a column, an EQUAL one or a range one. */
+    private ColumnFilterTree findLeaf(List<ColumnFilterTree> conjuncts, int column, boolean equal)
+            throws IOException {
+        for (ColumnFilterTree conjunct : conjuncts) {
+            if (!conjunct.isLeafNode() || findColumn(conjunct.getColumnFilter()) != column) {
+                continue;
+            }
+            int operator = conjunct.getColumnFilter().getOperator();
+            if (equal ? operator == ColumnFilterOperator.EQUAL : operator != ColumnFilterOperator.NOT_EQUAL) {
+                return conjunct;
+            }
+        }
+        return null;
+    }
+
+    private static void collectConjuncts(ColumnFilterTree node, List<ColumnFilterTree> conjuncts) {
+        if (!node.isLeafNode() && node.getConnector() == ColumnFilterTree.AND) {
+            collectConjuncts(node.getLeftChild(), conjuncts);
+            collectConjuncts(node.getRightChild(), conjuncts);
+        } else {
+            conjuncts.add(node);
+        }
+    }
+
+    /* Makes the AND node that two plans are combined under. */
+    private static ColumnFilterTree and(QueryPlan left, QueryPlan right) {
+        return new ColumnFilterTree(left.getSource(), ColumnFilterTree.AND, right.getSource());
+    }
+
+    private QueryPlan planLeaf(ColumnFilterTree node) throws IOException {
+        ColumnFilter filter = node.getColumnFilter();
+        int column = findColumn(filter);
+        double selectivity = estimateSelectivity(filter);
+
+        QueryPlan primary = QueryPlan.primaryScan(node, filter.toPrimaryFilter(table),
+                new int[]{column}, selectivity, PRIMARY_ROW_COST);
+        if (!table.getTableProperty().getColumnProperty(column).isIndexReady()) {
+            return primary;
+        }
+
+        QueryPlan index = QueryPlan.indexScan(node, filter.toColumnScans(table),
+                selectivity, selectivity * INDEX_ROW_COST);
+        return cheaper(index, primary);
+    }
+
+    private QueryPlan planAnd(ColumnFilterTree node, QueryPlan left, QueryPlan right) throws IOException {
+        if (isMergable(left, right)) {
+            ColumnScans merged = left.getColumnScans().intersectMerge(right.getColumnScans());
+            double selectivity = Math.min(left.getSelectivity(), right.getSelectivity());
+            return QueryPlan.indexScan(node, merged, selectivity, selectivity * INDEX_ROW_COST);
+        }
+
+        double selectivity = left.getSelectivity() * right.getSelectivity();
+        QueryPlan best = QueryPlan.primaryScan(node, node.toPrimaryFilter(table),
+                node.getColumns(table), selectivity, PRIMARY_ROW_COST);
+
+        best = cheaper(best, QueryPlan.combine(QueryPlan.INTERSECT, node, left, right, selectivity,
+                left.getCost() + right.getCost()
+                        + (left.getSelectivity() + right.getSelectivity()) * COMBINE_ROW_COST));
+
+        if (left.getStrategy() != QueryPlan.PRIMARY_SCAN) {
+            best = cheaper(best, residual(node, left, node.getRightChild(), selectivity));
+        }
+        if (right.getStrategy() != QueryPlan.PRIMARY_SCAN) {
+            best = cheaper(best, residual(node, right, node.getLeftChild(), selectivity));
+        }
+        return best;
+    }
+
+    private QueryPlan planOr(ColumnFilterTree node, QueryPlan left, QueryPlan right) throws IOException {
+        if (isMergable(left, right)) {
+            ColumnScans merged = left.getColumnScans().unionMerge(right.getColumnScans());
+            double selectivity = Math.min(1.0, left.getSelectivity() + right.getSelectivity());
+            return QueryPlan.indexScan(node, merged, selectivity, selectivity * INDEX_ROW_COST);
+        }
+
+        double selectivity = left.getSelectivity() + right.getSelectivity()
+                - left.getSelectivity() * right.getSelectivity();
+        QueryPlan primary = QueryPlan.primaryScan(node, node.toPrimaryFilter(table),
+                node.getColumns(table), selectivity, PRIMARY_ROW_COST);
+        return cheaper(primary, QueryPlan.combine(QueryPlan.UNION, node, left, right, selectivity,
+                left.getCost() + right.getCost()
+                        + (left.getSelectivity() + right.getSelectivity()) * COMBINE_ROW_COST));
+    }
+
+    /* Plans rows of driver checked against another part of the tree. */
+    private QueryPlan residual(ColumnFilterTree node, QueryPlan driver,
+                               ColumnFilterTree residual, double selectivity) throws IOException {
+        double cost = driver.getCost() + driver.getSelectivity() * RANDOM_GET_COST;
+        return QueryPlan.residual(node, driver, residual, residual.toPrimaryFilter(table),
+                residual.getColumns(table), selectivity, cost);
+    }
+
+    private static boolean isMergable(QueryPlan left, QueryPlan right) {
+        return left.getStrategy() == QueryPlan.INDEX_SCAN
+                && right.getStrategy() == QueryPlan.INDEX_SCAN
+                && left.getColumnScans().isMergable(right.getColumnScans());
+    }
+
+    private static QueryPlan cheaper(QueryPlan a, QueryPlan b) {
+        return b.getCost() < a.getCost() ? b : a;
+    }
+
+    private int findColumn(ColumnFilter filter) throws IOException {
+        int column = table.findColumn(filter.getColumn());
+        if (column == -1) {
+            throw new IOException("Column " + filter.getColumn() + " not found in table "
+                    + table.getTableProperty().getName());
+        }
+        return column;
+    }
+}
@@ -1,9 +1,16 @@
 package halo.client;
 
+import halo.core.Aggregate;
+import halo.core.AsyncHaloTable;
 import halo.core.HaloTable;
+import halo.core.QueryResult;
+import halo.core.RowId;
 import halo.core.RowSet;
 
 import java.io.IOException;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * WhereClause is a tree structure representing the where clause part in
@@ -11,6 +18,7 @@ import java.io.IOException;
  */
 public class WhereClause {
     ColumnFilterTree filterTree;
+    int parallelism = 1;
 
     /**
      * Constructs a trivial where-clause.
@@ -48,7 +56,142 @@ public class WhereClause {
         return new WhereClauseParser(statement, start, stop).getWhereClause();
     }
 
+    /* Gets the maximum number of subtrees that are evaluated at the same time. */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the maximum number of subtrees that are evaluated at the same
+     * time, 1 (the default) for sequential evaluation.
+     */
+    public WhereClause setParallelism(int parallelism) {
+        this.parallelism = parallelism > 0 ? parallelism : 1;
+        return this;
+    }
+
+    /**
+     * Gets the plan that applyToTable() executes against a table.
+     */
+    public QueryPlan explain(HaloTable table) throws IOException {
+        return filterTree.plan(table);
+    }
+
+    /**
+     * Gets the plan that select() executes against a table.
+     */
+    public QueryPlan explain(HaloTable table, int[] selectedCols) throws IOException {
+        return filterTree.plan(table, selectedCols);
+    }
+
     public RowSet applyToTable(HaloTable table) throws IOException {
-        return filterTree.applyToTable(table);
+        return filterTree.applyToTable(table, parallelism);
+    }
+
+    /**
+     * Applies this where-clause to a table on its I/O executor.
+     * @return A future of the matching rows.
+     */
+    public CompletableFuture<RowSet> applyToTable(final AsyncHaloTable table) {
+        return table.submit(new Callable<RowSet>() {
+            @Override
+            public RowSet call() throws Exception {
+                return applyToTable(table.getTable());
+            }
+        });
+    }
+
+    /**
+     * Reads the selected columns of the rows matching this where-clause.
+     * Queries answered by an index that covers the selected columns never
+     * read the primary table.
+     */
+    public QueryResult select(HaloTable table, int[] selectedCols) throws IOException {
+        return explain(table, selectedCols).select(table, selectedCols, parallelism);
+    }
+
+    /**
+     * Counts the rows matching this where-clause. Filters answered by a
+     * single index range are counted from the index keys.
+     */
+    public long count(HaloTable table) throws IOException {
+        return explain(table).count(table, parallelism);
+    }
+
+    /**
+     * Reads the distinct values of a column in the rows matching this
+     * where-clause. Values are decoded from the index keys when the
+     * where-clause is answered by an index range scan of the same column,
+     * and in ascending order then. Rows without a value of the column are
+     * left out, as Aggregate leaves them out.
+     */
+    public QueryResult selectDistinct(HaloTable table, String column) throws IOException {
+        int icol = findColumn(table, column);
+        QueryPlan plan = explain(table, new int[]{icol});
+        if (isIndexOnly(plan, icol)) {
+            return table.selectDistinct(plan.getColumnScans());
+        }
+
+        QueryResult rows = plan.select(table, new int[]{icol}, parallelism);
+        TreeSet<byte[]> values = new TreeSet<byte[]>(RowId.Comparator);
+        for (int i = 0; i < rows.getNumberOfRows(); ++i) {
+            byte[] value = rows.getRow(i)[0];
+            if (value != null && value.length != 0) {
+                values.add(value);
+            }
+        }
+        QueryResult result = new QueryResult(1);
+        for (byte[] value : values) {
+            result.add(new byte[][]{value});
+        }
+        return result;
+    }
+
+    /**
+     * Counts the distinct values of a column in the rows matching this
+     * where-clause, see selectDistinct().
+     */
+    public long countDistinct(HaloTable table, String column) throws IOException {
+        int icol = findColumn(table, column);
+        QueryPlan plan = explain(table, new int[]{icol});
+        if (isIndexOnly(plan, icol)) {
+            return table.countDistinct(plan.getColumnScans());
+        }
+        return selectDistinct(table, column).getNumberOfRows();
+    }
+
+    /**
+     * Evaluates an aggregate function of a column over the rows matching
+     * this where-clause in one streaming pass, see QueryPlan.aggregate().
+     * COUNT(*) is counted as count() does.
+     * @param function One of the functions of Aggregate.
+     * @param column Label of the column, null for COUNT(*).
+     */
+    public Aggregate aggregate(HaloTable table, int function, String column) throws IOException {
+        if (column == null) {
+            Aggregate aggregate = new Aggregate(function, null);
+            aggregate.addCount(count(table));
+            return aggregate;
+        }
+
+        int icol = findColumn(table, column);
+        Aggregate aggregate = new Aggregate(function,
+                table.getTableProperty().getColumnProperty(icol).getDataType());
+        explain(table, new int[]{icol}).aggregate(table, aggregate, icol, parallelism);
+        return aggregate;
+    }
+
+    private static boolean isIndexOnly(QueryPlan plan, int column) {
+        return plan.getStrategy() == QueryPlan.COVERING_INDEX_SCAN
+                && plan.getColumnScans().getColumn() == column;
+    }
+
+    private static int findColumn(HaloTable table, String column) throws IOException {
+        int icol = table.findColumn(column);
+        if (icol == -1) {
+            throw new IOException("Column " + column + " not found in table "
+                    + table.getTableProperty().getName());
+        }
+        return icol;
     }
 }
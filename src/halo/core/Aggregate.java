@@ -0,0 +1,195 @@
+package halo.core;
+
+import halo.client.InvalidArgument;
+import halo.common.Bytes;
+
+import java.io.IOException;
+
+/**
+ * An aggregate function of a column, folded over the values one at a time
+ * so that the rows never have to be held in memory. Missing values, and
+ * the empty values stored for columns a row was written without, are
+ * skipped, as NULL values are in SQL.
+ *
+ * Usage:
+ *   Aggregate sum = where.aggregate(table, Aggregate.SUM, "price");
+ *   byte[] value = sum.getValue();   // serialized as sum.getResultType()
+ */
+public class Aggregate {
+    public static final int COUNT = 1;
+    public static final int SUM = 2;
+    public static final int MIN = 3;
+    public static final int MAX = 4;
+    public static final int AVG = 5;
+
+    private int function;
+    private DataType dataType;
+    private long count;
+    private long longSum;
+    private double doubleSum;
+    /* Ordered form of the least or greatest value added so far */
+    private byte[] extreme;
+
+    /**
+     * @param dataType Type of the aggregated column, null for COUNT(*).
+     * @throws IOException If the function is not defined on the type.
+     */
+    public Aggregate(int function, DataType dataType) throws IOException {
+        if (function < COUNT || function > AVG) {
+            throw new IOException("Unknown aggregate function, id=" + function);
+        }
+        if (dataType == null && function != COUNT) {
+            throw new IOException(toString(function) + " needs a column");
+        }
+        if ((function == SUM || function == AVG) && !isNumeric(dataType)) {
+            throw new IOException(toString(function) + " is not defined on " + dataType);
+        }
+        this.function = function;
+        this.dataType = dataType;
+    }
+
+    /**
+     * Parses the name of an aggregate function, case insensitive.
+     * @throws InvalidArgument In case name is not an aggregate function.
+     */
+    public static int valueOf(String name) throws InvalidArgument {
+        name = name.toUpperCase();
+        for (int function = COUNT; function <= AVG; ++function) {
+            if (name.equals(toString(function))) {
+                return function;
+            }
+        }
+        throw new InvalidArgument("Unknown aggregate function: " + name);
+    }
+
+    public static String toString(int function) {
+        switch (function) {
+            case COUNT:
+                return "COUNT";
+            case SUM:
+                return "SUM";
+            case MIN:
+                return "MIN";
+            case MAX:
+                return "MAX";
+            case AVG:
+                return "AVG";
+            default:
+                return "?";
+        }
+    }
+
+    public int getFunction() {
+        return function;
+    }
+
+    /* Gets the type of the aggregated column, null for COUNT(*). */
+    public DataType getDataType() {
+        return dataType;
+    }
+
+    /**
+     * Adds a value of the column.
+     * @param value Serialized value, null or empty for a missing one.
+     */
+    public void add(byte[] value) {
+        if (value == null || value.length == 0) {
+            return;
+        }
+        ++count;
+        switch (function) {
+            case SUM:
+            case AVG:
+                switch (dataType.getTypeId()) {
+                    case DataType.TYPEID_INT32:
+                        longSum += Bytes.toInt(value);
+                        break;
+                    case DataType.TYPEID_INT64:
+                        longSum += Bytes.toLong(value);
+                        break;
+                    case DataType.TYPEID_FLOAT:
+                        doubleSum += Bytes.toFloat(value);
+                        break;
+                    default:
+                        doubleSum += Bytes.toDouble(value);
+                        break;
+                }
+                break;
+            case MIN:
+            case MAX: {
+                byte[] ordered = dataType.toOrdered(value);
+                int c = extreme == null ? 0 : Bytes.compare(ordered, extreme);
+                if (extreme == null || (function == MIN ? c < 0 : c > 0)) {
+                    extreme = ordered;
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /* Adds rows that are known to have a value without reading them, for COUNT. */
+    public void addCount(long rows) {
+        count += rows;
+    }
+
+    /* Gets the number of values added. */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the type of the result: INT64 for COUNT and integer SUMs,
+     * DOUBLE for AVG and floating point SUMs, the column type for MIN
+     * and MAX.
+     */
+    public DataType getResultType() {
+        switch (function) {
+            case COUNT:
+                return DataType.INT64;
+            case SUM:
+                return isFloatingPoint(dataType) ? DataType.DOUBLE : DataType.INT64;
+            case AVG:
+                return DataType.DOUBLE;
+            default:
+                return dataType;
+        }
+    }
+
+    /**
+     * Gets the result, serialized as getResultType().
+     * @return null if no value was added, except for COUNT.
+     */
+    public byte[] getValue() {
+        if (function == COUNT) {
+            return Bytes.toBytes(count);
+        }
+        if (count == 0) {
+            return null;
+        }
+        switch (function) {
+            case SUM:
+                return isFloatingPoint(dataType) ? Bytes.toBytes(doubleSum) : Bytes.toBytes(longSum);
+            case AVG:
+                return Bytes.toBytes((isFloatingPoint(dataType) ? doubleSum : (double) longSum) / count);
+            default:
+                return dataType.fromOrdered(extreme);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toString(function) + "(" + (dataType != null ? dataType.toString() : "*") + ")";
+    }
+
+    private static boolean isNumeric(DataType dataType) {
+        int typeId = dataType.getTypeId();
+        return typeId == DataType.TYPEID_INT32 || typeId == DataType.TYPEID_INT64 || isFloatingPoint(dataType);
+    }
+
+    private static boolean isFloatingPoint(DataType dataType) {
+        int typeId = dataType.getTypeId();
+        return typeId == DataType.TYPEID_FLOAT || typeId == DataType.TYPEID_DOUBLE;
+    }
+}
@@ -0,0 +1,219 @@
+package halo.core;
+
+import org.apache.hadoop.hbase.client.Scan;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the operations of a HaloTable on a bounded I/O executor and hands
+ * back CompletableFutures, so a caller doesn't hold a thread of its own for
+ * every operation in flight. Operations beyond the number of executor
+ * threads wait in the executor queue.
+ *
+ * Tables opened by HaloSession.openAsyncTable() share the I/O executor of
+ * the session and own the table they run on, which is closed by close().
+ * An AsyncHaloTable made from a table alone has an executor of its own,
+ * which is shut down by close(), and leaves the table to its caller.
+ *
+ * Usage:
+ *   AsyncHaloTable async = session.openAsyncTable("t");
+ *   async.select(selectedCols, rows).thenAccept(...);
+ */
+public class AsyncHaloTable {
+    /* Default number of threads of an I/O executor */
+    public static final int DEFAULT_IO_THREADS = 32;
+
+    private HaloTable table;
+    private ExecutorService executor;
+    private boolean ownsExecutor;
+    private boolean ownsTable;
+    private volatile boolean closed;
+
+    /**
+     * Runs the operations of a table on an executor of its own with
+     * DEFAULT_IO_THREADS threads.
+     */
+    public AsyncHaloTable(HaloTable table) {
+        this(table, newIoExecutor(DEFAULT_IO_THREADS, table.getTableProperty().getName()), true, false);
+    }
+
+    /**
+     * Runs the operations of a table on a shared executor, which is left
+     * running by close().
+     */
+    public AsyncHaloTable(HaloTable table, ExecutorService executor) {
+        this(table, executor, false, false);
+    }
+
+    AsyncHaloTable(HaloTable table, ExecutorService executor, boolean ownsExecutor, boolean ownsTable) {
+        this.table = table;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.ownsTable = ownsTable;
+    }
+
+    /* Makes a fixed pool of daemon threads. */
+    static ExecutorService newIoExecutor(int threads, final String name) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "halo-io-" + name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /* Gets the table that the operations are run on. */
+    public HaloTable getTable() {
+        return table;
+    }
+
+    /**
+     * An operation queued on an I/O executor, holds its future so that
+     * the future can be completed when the queue is thrown away.
+     */
+    static class Operation<T> implements Runnable {
+        private final Callable<T> callable;
+        private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        Operation(Callable<T> callable) {
+            this.callable = callable;
+        }
+
+        CompletableFuture<T> getFuture() {
+            return future;
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(callable.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Shuts down an I/O executor and fails the futures of the operations
+     * still queued on it with a CancellationException.
+     */
+    static void shutdownNow(ExecutorService executor) {
+        for (Runnable queued : executor.shutdownNow()) {
+            if (queued instanceof Operation) {
+                ((Operation<?>) queued).getFuture().completeExceptionally(
+                        new CancellationException("I/O executor shut down"));
+            }
+        }
+    }
+
+    /**
+     * Runs an operation on the I/O executor.
+     * @return A future completed with the result of the operation, or
+     *         exceptionally with what the operation threw. Operations
+     *         submitted after close() fail with a RejectedExecutionException.
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> operation) {
+        Operation<T> queued = new Operation<T>(operation);
+        if (closed) {
+            queued.getFuture().completeExceptionally(new RejectedExecutionException("Async table closed"));
+            return queued.getFuture();
+        }
+        try {
+            executor.execute(queued);
+        } catch (RejectedExecutionException e) {
+            queued.getFuture().completeExceptionally(e);
+        }
+        return queued.getFuture();
+    }
+
+    public CompletableFuture<NonQueryResult> insert(final int[] selectedCols, final byte[][] values) {
+        return submit(new Callable<NonQueryResult>() {
+            @Override
+            public NonQueryResult call() throws Exception {
+                return table.insert(selectedCols, values);
+            }
+        });
+    }
+
+    public CompletableFuture<NonQueryResult> insertBatch(final int[] selectedCols, final List<byte[][]> rows) {
+        return submit(new Callable<NonQueryResult>() {
+            @Override
+            public NonQueryResult call() throws Exception {
+                return table.insertBatch(selectedCols, rows);
+            }
+        });
+    }
+
+    public CompletableFuture<NonQueryResult> update(
+            final int[] selectedCols, final byte[][] values, final RowSet target) {
+        return submit(new Callable<NonQueryResult>() {
+            @Override
+            public NonQueryResult call() throws Exception {
+                return table.update(selectedCols, values, target);
+            }
+        });
+    }
+
+    public CompletableFuture<NonQueryResult> delete(final RowSet target) {
+        return submit(new Callable<NonQueryResult>() {
+            @Override
+            public NonQueryResult call() throws Exception {
+                return table.delete(target);
+            }
+        });
+    }
+
+    public CompletableFuture<QueryResult> select(final int[] selectedCols, final RowSet target) {
+        return submit(new Callable<QueryResult>() {
+            @Override
+            public QueryResult call() throws Exception {
+                return table.select(selectedCols, target);
+            }
+        });
+    }
+
+    public CompletableFuture<RowSet> scan(final ColumnScans columnScans) {
+        return submit(new Callable<RowSet>() {
+            @Override
+            public RowSet call() throws Exception {
+                return table.scan(columnScans);
+            }
+        });
+    }
+
+    public CompletableFuture<RowSet> scanPrimary(final Scan scan) {
+        return submit(new Callable<RowSet>() {
+            @Override
+            public RowSet call() throws Exception {
+                return table.scanPrimary(scan);
+            }
+        });
+    }
+
+    /**
+     * Shuts down the executor if this table has made it, and closes the
+     * table if it was opened by a session. Operations in flight are
+     * interrupted, queued ones fail with a CancellationException.
+     */
+    public void close() {
+        closed = true;
+        if (ownsExecutor) {
+            shutdownNow(executor);
+        }
+        if (ownsTable) {
+            table.close();
+        }
+    }
+}
@@ -5,9 +5,18 @@ package halo.core;
  * Created by riz on 14-7-1.
  */
 public class ColumnProperty {
+    /* The index is complete and may be used by queries */
+    public static final int INDEX_READY = 0;
+
+    /* The index is being filled by HaloAdmin.createIndex(), writers maintain it but queries don't use it */
+    public static final int INDEX_BUILDING = 1;
+
     private String label;
     private DataType dataType;
     private boolean index;
+    private int indexState = INDEX_READY;
+    private String[] includedColumns = new String[0];
+    private String[] keyColumns = new String[0];
 
     public ColumnProperty(String label, DataType dataType, boolean index) {
         setLabel(label);
@@ -31,6 +40,48 @@ public class ColumnProperty {
         return index;
     }
 
+    public int getIndexState() {
+        return indexState;
+    }
+
+    public ColumnProperty setIndexState(int indexState) {
+        this.indexState = indexState;
+        return this;
+    }
+
+    /* Tells if the column has an index that queries may use. */
+    public boolean isIndexReady() {
+        return index && indexState == INDEX_READY;
+    }
+
+    /**
+     * Gets labels of the columns whose values are copied into the index
+     * rows of this column, so that queries reading only those columns are
+     * answered from the index table.
+     */
+    public String[] getIncludedColumns() {
+        return includedColumns;
+    }
+
+    public ColumnProperty setIncludedColumns(String... includedColumns) {
+        this.includedColumns = includedColumns != null ? includedColumns : new String[0];
+        return this;
+    }
+
+    /**
+     * Gets labels of the columns that follow this column in the row keys
+     * of its index, which makes it a composite index over this column and
+     * the key columns, in that order.
+     */
+    public String[] getKeyColumns() {
+        return keyColumns;
+    }
+
+    public ColumnProperty setKeyColumns(String... keyColumns) {
+        this.keyColumns = keyColumns != null ? keyColumns : new String[0];
+        return this;
+    }
+
     public ColumnProperty setLabel(String label) {
         this.label = label;
         return this;
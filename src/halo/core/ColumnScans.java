@@ -82,8 +82,9 @@ public class ColumnScans {
             return start != null && segment.stop != null && Bytes.compare(start, segment.stop) > 0;
         }
 
+        /* Makes a scan of this segment, a null start or stop is left open. */
         public Scan toScan() {
-            return new Scan(start, stop);
+            return new Scan(start != null ? start : Bytes.NULL, stop != null ? stop : Bytes.NULL);
         }
 
         public byte[] getStop() {
@@ -176,30 +177,34 @@ public class ColumnScans {
         segments = new ArrayList<Segment>(a.size() + b.size());
         int i = 0, na = a.size();
         int j = 0, nb = b.size();
-        if (Bytes.compare(a.get(0).getStart(), b.get(0).getStart()) < 0) {
-            ++i;
-            segments.add(a.get(0));
-        } else {
-            ++j;
-            segments.add(b.get(0));
-        }
-
-        while (i < na && j < nb) {
-            Segment l = a.get(i);
-            Segment r = b.get(j);
-            Segment last = segments.get(segments.size()-1);
-            if (l.atLeftOf(r) && l.atRightOf(last)){
-                ++i;
-                segments.add(l);
-            } else if (r.atLeftOf(l)){
+        while (i < na || j < nb) {
+            Segment next;
+            if (j >= nb || (i < na && compareStart(a.get(i), b.get(j)) <= 0)) {
+                next = a.get(i++);
+            } else {
+                next = new Segment(b.get(j).getStart(), b.get(j).getStop());
                 ++j;
-                segments.add(r);
+            }
+
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last != null && !last.atLeftOf(next)) {
+                /* Overlapping segments are coalesced, so segments stay disjoint */
+                last.union(next);
             } else {
+                segments.add(next);
             }
         }
         return this;
     }
 
+    /* Compares start of two segments, null start is negative infinite. */
+    private static int compareStart(Segment l, Segment r) {
+        if (l.getStart() == null || r.getStart() == null) {
+            return l.getStart() == null ? (r.getStart() == null ? 0 : -1) : 1;
+        }
+        return Bytes.compare(l.getStart(), r.getStart());
+    }
+
     public ColumnScans intersectMerge(ColumnScans another) throws IOException {
         if (!isMergable(another)) {
             throw new IOException("ColumnScans on different column can't be merged.");
@@ -214,22 +219,39 @@ public class ColumnScans {
             return this;
         }
 
-        int p = 0;
-        for (int i = 0; i < another.segments.size(); ++i) {
-            Segment target = another.segments.get(i);
-            while (p < segments.size() && segments.get(p).atLeftOf(target)) {
-                segments.remove(p);
-            }
-
-            if (p >= segments.size()) {
-                break;
-            }
-
-            if (!segments.get(p).atRightOf(target)) {
-                segments.get(p).intersect(target);
-                ++p;
+        ArrayList<Segment> a = segments;
+        ArrayList<Segment> b = another.segments;
+        segments = new ArrayList<Segment>();
+        int i = 0, na = a.size();
+        int j = 0, nb = b.size();
+        while (i < na && j < nb) {
+            Segment l = a.get(i);
+            Segment r = b.get(j);
+            if (l.atLeftOf(r)) {
+                ++i;
+            } else if (r.atLeftOf(l)) {
+                ++j;
+            } else {
+                Segment overlap = new Segment(l.getStart(), l.getStop()).intersect(r);
+                if (!overlap.isEmpty()) {
+                    segments.add(overlap);
+                }
+                /* The one that ends first can't overlap with any further segment */
+                if (compareStop(l, r) <= 0) {
+                    ++i;
+                } else {
+                    ++j;
+                }
             }
         }
         return this;
     }
+
+    /* Compares stop of two segments, null stop is positive infinite. */
+    private static int compareStop(Segment l, Segment r) {
+        if (l.getStop() == null || r.getStop() == null) {
+            return l.getStop() == null ? (r.getStop() == null ? 0 : 1) : -1;
+        }
+        return Bytes.compare(l.getStop(), r.getStop());
+    }
 }
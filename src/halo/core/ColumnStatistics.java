@@ -0,0 +1,245 @@
+package halo.core;
+
+import halo.client.ColumnFilterOperator;
+import halo.common.Bytes;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Statistics of the values of an indexed column, gathered by sampling
+ * the index table of the column.
+ *
+ * Values are kept in their stored form, the histogram is equi-depth: each
+ * bucket holds about the same number of rows and is described by the
+ * largest value in it.
+ */
+public class ColumnStatistics {
+    /* Number of histogram buckets */
+    public static final int BUCKETS = 32;
+
+    /* Maximum number of sampled values kept to build the histogram */
+    static final int RESERVOIR_SIZE = 8192;
+
+    private long rowCount;
+    private long distinctCount;
+    private byte[] min;
+    private byte[] max;
+    private byte[][] histogram;
+    private long rowIdMark;
+
+    public ColumnStatistics(long rowCount, long distinctCount, byte[] min, byte[] max,
+                            byte[][] histogram, long rowIdMark) {
+        this.rowCount = rowCount;
+        this.distinctCount = distinctCount;
+        this.min = min;
+        this.max = max;
+        this.histogram = histogram;
+        this.rowIdMark = rowIdMark;
+    }
+
+    /* Gets the estimated number of rows that have a value in this column. */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /* Gets the estimated number of distinct values. */
+    public long getDistinctCount() {
+        return distinctCount;
+    }
+
+    /* Gets the smallest sampled value, null if the column has no value. */
+    public byte[] getMin() {
+        return min;
+    }
+
+    /* Gets the largest sampled value, null if the column has no value. */
+    public byte[] getMax() {
+        return max;
+    }
+
+    /* Gets the upper bound of each histogram bucket, ascending. */
+    public byte[][] getHistogram() {
+        return histogram;
+    }
+
+    /* Gets the next row id of the table when these statistics were gathered. */
+    public long getRowIdMark() {
+        return rowIdMark;
+    }
+
+    /**
+     * Estimates the fraction of table rows that pass a filter on this column.
+     * @param value Stored form of the filter argument, the start value for BETWEEN.
+     * @param stopValue Stored form of the stop value for BETWEEN, otherwise ignored.
+     * @param tableRows Number of rows in the table.
+     */
+    public double estimateSelectivity(int operator, byte[] value, byte[] stopValue, long tableRows) {
+        double present = tableRows > 0 ? Math.min(1.0, (double) rowCount / tableRows) : 1.0;
+        if (rowCount == 0 || min == null) {
+            return 0.0;
+        }
+
+        double fraction;
+        switch (operator) {
+            case ColumnFilterOperator.EQUAL:
+                fraction = equalFraction(value);
+                break;
+            case ColumnFilterOperator.NOT_EQUAL:
+                fraction = 1.0 - equalFraction(value);
+                break;
+            case ColumnFilterOperator.LESS:
+                fraction = fractionBelow(value);
+                break;
+            case ColumnFilterOperator.LESS_OR_EQUAL:
+                fraction = fractionBelow(value) + equalFraction(value);
+                break;
+            case ColumnFilterOperator.GREATER:
+                fraction = 1.0 - fractionBelow(value) - equalFraction(value);
+                break;
+            case ColumnFilterOperator.GREATER_OR_EQUAL:
+                fraction = 1.0 - fractionBelow(value);
+                break;
+            case ColumnFilterOperator.BETWEEN_AND:
+                fraction = fractionBelow(stopValue) + equalFraction(stopValue) - fractionBelow(value);
+                break;
+            default:
+                fraction = 1.0;
+        }
+        return present * Math.max(0.0, Math.min(1.0, fraction));
+    }
+
+    private double equalFraction(byte[] value) {
+        if (Bytes.compare(value, min) < 0 || Bytes.compare(value, max) > 0) {
+            return 0.0;
+        }
+        return 1.0 / Math.max(1, distinctCount);
+    }
+
+    /* Fraction of rows whose value is less than value. */
+    private double fractionBelow(byte[] value) {
+        if (Bytes.compare(value, min) <= 0) {
+            return 0.0;
+        }
+        if (Bytes.compare(value, max) > 0) {
+            return 1.0;
+        }
+        int below = 0;
+        while (below < histogram.length && Bytes.compare(histogram[below], value) < 0) {
+            ++below;
+        }
+        /* Assume value lies in the middle of its bucket */
+        double partial = below < histogram.length ? 0.5 : 0.0;
+        return (below + partial) / histogram.length;
+    }
+
+    /**
+     * Gathers statistics from a scanner over an index table.
+     * Index rows are read in value order, so distinct values are counted by
+     * comparing each value with the previous one.
+     *
+     * @param sampleRate Fraction of index rows that the scanner returns.
+     * @param rowIdMark Next row id of the table.
+     */
+    static ColumnStatistics collect(ResultScanner scanner, ColumnProperty prop,
+                                    float sampleRate, long rowIdMark) throws IOException {
+        long sampled = 0;
+        long distinct = 0;
+        long singletons = 0;
+        long run = 0;
+        byte[] first = null;
+        byte[] last = null;
+        ArrayList<byte[]> reservoir = new ArrayList<byte[]>();
+        Random random = new Random();
+
+        for (Result result = scanner.next(); result != null; result = scanner.next()) {
+            byte[] value = IndexKey.valueOf(prop, result.getRow());
+            if (last == null || !Arrays.equals(last, value)) {
+                if (run == 1) {
+                    ++singletons;
+                }
+                ++distinct;
+                run = 0;
+            }
+            ++run;
+            if (first == null) {
+                first = value;
+            }
+            last = value;
+
+            ++sampled;
+            if (reservoir.size() < RESERVOIR_SIZE) {
+                reservoir.add(value);
+            } else {
+                long slot = (long) (random.nextDouble() * sampled);
+                if (slot < RESERVOIR_SIZE) {
+                    reservoir.set((int) slot, value);
+                }
+            }
+        }
+        if (run == 1) {
+            ++singletons;
+        }
+
+        double rate = sampleRate > 0 && sampleRate < 1 ? sampleRate : 1.0;
+        long rows = Math.round(sampled / rate);
+
+        /**
+         * Guaranteed-error estimator: values seen once in the sample stand
+         * for sqrt(N/n) values each, the others were seen already.
+         */
+        long distinctEstimate = Math.round(Math.sqrt(1.0 / rate) * singletons + (distinct - singletons));
+        distinctEstimate = Math.max(distinct, Math.min(rows, distinctEstimate));
+
+        return new ColumnStatistics(rows, distinctEstimate, first, last,
+                buildHistogram(reservoir), rowIdMark);
+    }
+
+    private static byte[][] buildHistogram(ArrayList<byte[]> values) {
+        int n = values.size();
+        if (n == 0) {
+            return new byte[0][];
+        }
+        byte[][] sorted = values.toArray(new byte[n][]);
+        Arrays.sort(sorted, RowId.Comparator);
+        int buckets = Math.min(BUCKETS, n);
+        byte[][] bounds = new byte[buckets][];
+        for (int i = 0; i < buckets; ++i) {
+            bounds[i] = sorted[(int) ((long) (i + 1) * n / buckets) - 1];
+        }
+        return bounds;
+    }
+
+
+    /**
+     * Serializes the histogram: number of buckets followed by the
+     * length and bytes of each bound.
+     */
+    static byte[] histogramToBytes(byte[][] histogram) {
+        int size = 4;
+        for (byte[] bound : histogram) {
+            size += 4 + bound.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(histogram.length);
+        for (byte[] bound : histogram) {
+            buffer.putInt(bound.length).put(bound);
+        }
+        return buffer.array();
+    }
+
+    static byte[][] histogramFromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte[][] histogram = new byte[buffer.getInt()][];
+        for (int i = 0; i < histogram.length; ++i) {
+            histogram[i] = new byte[buffer.getInt()];
+            buffer.get(histogram[i]);
+        }
+        return histogram;
+    }
+}
@@ -3,6 +3,11 @@ package halo.core;
 import halo.client.InvalidArgument;
 import halo.common.Bytes;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
 /**
  * Descriptor for a specific data type.
  */
@@ -73,6 +78,87 @@ public class DataType {
         }
     }
 
+    /**
+     * Converts a serialized value to a form whose unsigned byte order is
+     * the order of the values. Integers get their sign bit flipped, floating
+     * point numbers get the sign bit flipped when positive and all bits
+     * flipped when negative, DATETIME becomes milliseconds since the epoch
+     * of the literal read as UTC, as an ordered INT64.
+     * @param value Serialized value, as made by valueOf().
+     * @return Ordered representation of the value.
+     * @throws IllegalArgumentException If a DATETIME value is not
+     *         "yyyy-MM-dd HH:mm:ss", see TableProperty.toStoredValue().
+     */
+    public byte[] toOrdered(byte[] value) {
+        if (value == null || value.length == 0) {
+            return value;
+        }
+        switch (typeId){
+            case DataType.TYPEID_INT32:
+                return Bytes.toBytes(Bytes.toInt(value) ^ Integer.MIN_VALUE);
+            case DataType.TYPEID_INT64:
+                return Bytes.toBytes(Bytes.toLong(value) ^ Long.MIN_VALUE);
+            case DataType.TYPEID_FLOAT: {
+                int bits = Bytes.toInt(value);
+                return Bytes.toBytes(bits ^ ((bits >> 31) | Integer.MIN_VALUE));
+            }
+            case DataType.TYPEID_DOUBLE: {
+                long bits = Bytes.toLong(value);
+                return Bytes.toBytes(bits ^ ((bits >> 63) | Long.MIN_VALUE));
+            }
+            case DataType.TYPEID_DATETIME:
+                try {
+                    long millis = dateFormat().parse(Bytes.toString(value)).getTime();
+                    return Bytes.toBytes(millis ^ Long.MIN_VALUE);
+                } catch (ParseException e) {
+                    throw new IllegalArgumentException("Bad DATETIME value: " + Bytes.toString(value));
+                }
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Converts an ordered representation made by toOrdered() back to
+     * the serialized value.
+     */
+    public byte[] fromOrdered(byte[] ordered) {
+        if (ordered == null || ordered.length == 0) {
+            return ordered;
+        }
+        switch (typeId){
+            case DataType.TYPEID_INT32:
+                return Bytes.toBytes(Bytes.toInt(ordered) ^ Integer.MIN_VALUE);
+            case DataType.TYPEID_INT64:
+                return Bytes.toBytes(Bytes.toLong(ordered) ^ Long.MIN_VALUE);
+            case DataType.TYPEID_FLOAT: {
+                int bits = Bytes.toInt(ordered);
+                return Bytes.toBytes(bits ^ ((~bits >> 31) | Integer.MIN_VALUE));
+            }
+            case DataType.TYPEID_DOUBLE: {
+                long bits = Bytes.toLong(ordered);
+                return Bytes.toBytes(bits ^ ((~bits >> 63) | Long.MIN_VALUE));
+            }
+            case DataType.TYPEID_DATETIME:
+                long millis = Bytes.toLong(ordered) ^ Long.MIN_VALUE;
+                return Bytes.toBytes(dateFormat().format(new Date(millis)));
+            default:
+                return ordered;
+        }
+    }
+
+    /**
+     * SimpleDateFormat is not thread safe, every caller gets its own.
+     * Literals are read as UTC, so the ordered form depends on the literal
+     * alone, not on the time zone of the client, and has no DST gaps.
+     */
+    private static SimpleDateFormat dateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format;
+    }
+
     public static DataType fromFaceName(String faceName) throws InvalidArgument {
         faceName = faceName.toUpperCase();
         if (faceName.equals(INT32.faceName)) {
@@ -0,0 +1,149 @@
+package halo.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs small independent tasks, such as the Get of a single row, each on
+ * a thread of its own so that their round trips overlap.
+ *
+ * At most getProcessLimit() tasks are in flight in the process, and at
+ * most the limit of the caller (e.g. HaloTable.getFanOutLimit()) for that
+ * caller. Tasks are started in order and the caller waits for a free slot
+ * before starting the next one, so a slow cluster slows callers down
+ * instead of piling up threads.
+ *
+ * Java 8 has no virtual threads; tasks run on a cached pool of daemon
+ * threads, whose size is bounded by the process limit.
+ */
+public class FanOut {
+    /* Default maximum number of tasks in flight in the process */
+    public static final int DEFAULT_PROCESS_LIMIT = 512;
+
+    /* Default maximum number of tasks in flight for one table */
+    public static final int DEFAULT_TABLE_LIMIT = 64;
+
+    /**
+     * A cap on the number of tasks in flight, which may be changed while
+     * tasks are running.
+     */
+    static class Limit {
+        private int limit;
+        private int inFlight;
+
+        Limit(int limit) {
+            this.limit = limit;
+        }
+
+        synchronized int get() {
+            return limit;
+        }
+
+        synchronized void set(int limit) {
+            this.limit = limit;
+            notifyAll();
+        }
+
+        synchronized void acquire() throws InterruptedIOException {
+            try {
+                while (inFlight >= limit) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(e.getMessage());
+            }
+            ++inFlight;
+        }
+
+        synchronized void release() {
+            --inFlight;
+            notifyAll();
+        }
+    }
+
+    private static final Limit processLimit = new Limit(DEFAULT_PROCESS_LIMIT);
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "halo-fanout");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /* Gets the maximum number of tasks in flight in the process. */
+    public static int getProcessLimit() {
+        return processLimit.get();
+    }
+
+    public static void setProcessLimit(int limit) {
+        processLimit.set(limit > 0 ? limit : DEFAULT_PROCESS_LIMIT);
+    }
+
+    /**
+     * Runs tasks at the same time within the process limit and the limit
+     * of the caller, and waits for all of them.
+     * @return Results of the tasks, in the order of tasks.
+     * @throws IOException The first failure in the order of tasks, thrown
+     *         after all started tasks are done.
+     */
+    static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, final Limit callerLimit) throws IOException {
+        ArrayList<Future<T>> pending = new ArrayList<Future<T>>(tasks.size());
+        IOException failure = null;
+        try {
+            for (final Callable<T> task : tasks) {
+                callerLimit.acquire();
+                try {
+                    processLimit.acquire();
+                } catch (IOException e) {
+                    callerLimit.release();
+                    throw e;
+                }
+
+                try {
+                    pending.add(executor.submit(new Callable<T>() {
+                        @Override
+                        public T call() throws Exception {
+                            try {
+                                return task.call();
+                            } finally {
+                                processLimit.release();
+                                callerLimit.release();
+                            }
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    processLimit.release();
+                    callerLimit.release();
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        /* Started tasks are waited for, so their slots are given back */
+        ArrayList<T> results = new ArrayList<T>(pending.size());
+        for (Future<T> f : pending) {
+            try {
+                results.add(HaloTable.waitFor(f));
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+}
@@ -3,17 +3,33 @@ package halo.core;
 import halo.common.Bytes;
 import halo.common.ColumnSpecifierHelper;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HRegionLocation;
 import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableExistsException;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.*;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by riz on 14-7-1.
+ *
+ * Table properties read from the metadata table are cached. A cached
+ * property is trusted for getMetadataTtl() milliseconds, after that it is
+ * validated against the schema version stamp of the table, which is
+ * bumped by every change of the table's metadata, and the incarnation
+ * stamp, which is drawn anew every time the table is created.
+ *
+ * An admin works on the connection of a HaloSession, tables opened by it
+ * share the table handles of the session.
  */
 public class HaloAdmin {
     static class FieldSpecifierFormatter implements ColumnSpecifierHelper.Formatter{
@@ -28,12 +44,57 @@ public class HaloAdmin {
         }
     }
 
+    /**
+     * A table property read from the metadata table, with the schema
+     * version it was read at and the incarnation of the table.
+     */
+    private static class CachedProperty {
+        final TableProperty tableProperty;
+        final long incarnation;
+        final long version;
+        volatile long validatedAt;
+
+        CachedProperty(TableProperty tableProperty, long incarnation, long version, long validatedAt){
+            this.tableProperty = tableProperty;
+            this.incarnation = incarnation;
+            this.version = version;
+            this.validatedAt = validatedAt;
+        }
+
+        /* Checks the stamps of a metadata row read by readStamps(). */
+        boolean isCurrent(Result result){
+            return !result.isEmpty()
+                    && incarnationOf(result) == incarnation
+                    && versionOf(result) == version;
+        }
+    }
+
     static ColumnSpecifierHelper labelspec =
             new ColumnSpecifierHelper(new FieldSpecifierFormatter("label"), 32);
     static ColumnSpecifierHelper dtypespec =
             new ColumnSpecifierHelper(new FieldSpecifierFormatter("dtype"), 32);
     static ColumnSpecifierHelper indexspec =
             new ColumnSpecifierHelper(new FieldSpecifierFormatter("index"), 32);
+    static ColumnSpecifierHelper includespec =
+            new ColumnSpecifierHelper(new FieldSpecifierFormatter("include"), 32);
+    static ColumnSpecifierHelper keyspec =
+            new ColumnSpecifierHelper(new FieldSpecifierFormatter("keys"), 32);
+    static ColumnSpecifierHelper indexStateSpec =
+            new ColumnSpecifierHelper(new FieldSpecifierFormatter("index.state"), 32);
+    static ColumnSpecifierHelper backfillspec =
+            new ColumnSpecifierHelper(new FieldSpecifierFormatter("backfill"), 32);
+    static ColumnSpecifierHelper statsRowsSpec =
+            new ColumnSpecifierHelper(new FieldSpecifierFormatter("stats.rows"), 32);
+    static ColumnSpecifierHelper statsDistinctSpec =
+            new ColumnSpecifierHelper(new FieldSpecifierFormatter("stats.distinct"), 32);
+    static ColumnSpecifierHelper statsMinSpec =
+            new ColumnSpecifierHelper(new FieldSpecifierFormatter("stats.min"), 32);
+    static ColumnSpecifierHelper statsMaxSpec =
+            new ColumnSpecifierHelper(new FieldSpecifierFormatter("stats.max"), 32);
+    static ColumnSpecifierHelper statsHistogramSpec =
+            new ColumnSpecifierHelper(new FieldSpecifierFormatter("stats.histogram"), 32);
+    static ColumnSpecifierHelper statsMarkSpec =
+            new ColumnSpecifierHelper(new FieldSpecifierFormatter("stats.mark"), 32);
 
     public static final String METADATA_TABLE = "halo.metadata";
     public static final byte[] PRIMARY_FAMILY = "d".getBytes();
@@ -42,41 +103,110 @@ public class HaloAdmin {
     public static final byte[] METADATA_DATE = "date".getBytes();
     public static final byte[] METADATA_OWNER = "owner".getBytes();
     public static final byte[] METADATA_COLUMNS = "columns".getBytes();
+    public static final byte[] METADATA_ANALYZED = "analyzed".getBytes();
+    public static final byte[] METADATA_ROWID_SEQUENCE = "rowid.sequence".getBytes();
+    public static final byte[] METADATA_VERSION = "version".getBytes();
+    public static final byte[] METADATA_INCARNATION = "incarnation".getBytes();
+    public static final byte[] METADATA_FORMAT = "format".getBytes();
+    public static final byte[] METADATA_SALT_BUCKETS = "salt.buckets".getBytes();
+
+    /* Default time in milliseconds a cached table property is trusted without validation */
+    public static final long DEFAULT_METADATA_TTL = 30000;
+
+    /* Version of tables created before versions were stamped */
+    static final long NO_VERSION = 0;
+
+    /* Incarnation of tables created before incarnations were stamped */
+    static final long NO_INCARNATION = 0;
+
+    private static final SecureRandom incarnations = new SecureRandom();
+
+    /* Number of index rows that analyze() aims to sample per column */
+    public static final long SAMPLE_ROWS = 100000;
+
+    /* Statistics of a column are refreshed once the table has grown by this fraction */
+    public static final double STALE_FRACTION = 0.1;
 
     Configuration conf;
+    HaloSession session;
+    boolean ownsSession;
     HBaseAdmin hBaseAdmin;
-    HTable metadataTable;
+    TableHandlePool handlePool;
+    private ConcurrentHashMap<String, CachedProperty> metadataCache =
+            new ConcurrentHashMap<String, CachedProperty>();
+    private volatile long metadataTtl = DEFAULT_METADATA_TTL;
+    private volatile long backfillRate = Throttle.UNLIMITED;
+    private volatile int backfillParallelism = HaloTable.DEFAULT_PARALLELISM;
 
+    /**
+     * Creates an admin with a session of its own, which is closed by close().
+     */
     public HaloAdmin(Configuration conf) throws IOException{
-        this.conf = conf;
-        hBaseAdmin = new HBaseAdmin(conf);
+        this(new HaloSession(conf), true);
+    }
+
+    /**
+     * Creates an admin on the connection of a session.
+     */
+    public HaloAdmin(HaloSession session) throws IOException{
+        this(session, false);
+    }
+
+    private HaloAdmin(HaloSession session, boolean ownsSession) throws IOException{
+        this.conf = session.getConfiguration();
+        this.session = session;
+        this.ownsSession = ownsSession;
+        this.handlePool = session.getHandlePool();
+        hBaseAdmin = new HBaseAdmin(session.getConnection());
 
         if (!hBaseAdmin.tableExists(METADATA_TABLE)){
             HTableDescriptor desc = new HTableDescriptor(TableName.valueOf(METADATA_TABLE));
             desc.addFamily(new HColumnDescriptor(METADATA_FAMILY).setMaxVersions(1));
             hBaseAdmin.createTable(desc);
         }
-        metadataTable = new HTable(conf, METADATA_TABLE);
+    }
+
+    /* Closes this admin, and its session if the admin has created it. */
+    public void close() throws IOException{
+        closeAdmin();
+        if (ownsSession){
+            session.close();
+        }
+    }
+
+    void closeAdmin() throws IOException{
+        hBaseAdmin.close();
     }
 
     public boolean tableExists(String tableName) throws IOException{
-        Result result = metadataTable.get(new Get(tableName.getBytes()));
+        CachedProperty cached = metadataCache.get(tableName);
+        if (cached != null && isFresh(cached)){
+            return true;
+        }
+        Result result = getMetadataRow(new Get(tableName.getBytes()));
         return null != getMetadata(result, METADATA_OWNER);
     }
 
-    public void createTable(TableProperty tableProperty) throws IOException{
+    public synchronized void createTable(TableProperty tableProperty) throws IOException{
         if (tableExists(tableProperty.getName())){
             throw new IOException("Table " + tableProperty.getName() + " already exists.");
         }
 
-        /* Create index tables */
+        int buckets = tableProperty.getSaltBuckets();
+        if (buckets < TableProperty.NO_SALT || buckets == 1 || buckets > TableProperty.MAX_SALT_BUCKETS){
+            throw new IOException("Number of salt buckets must be 0 or 2 to "
+                    + TableProperty.MAX_SALT_BUCKETS + ", got " + buckets);
+        }
+
         int columns = tableProperty.getNumberOfColumns();
+        for (int i = 0; i < columns; ++i){
+            validateIndex(tableProperty, i);
+        }
+
+        /* Create index tables */
         for (int i = 0; i < columns; ++i){
             if (tableProperty.getColumnProperty(i).isIndex()){
-                HTableDescriptor idesc = new HTableDescriptor(
-                        TableName.valueOf(tableProperty.getIndexTableName(i)));
-                idesc.addFamily(new HColumnDescriptor(INDEX_FAMILY).setMaxVersions(1));
-                hBaseAdmin.createTable(idesc);
+                createIndexTable(tableProperty, i);
             }
         }
 
@@ -84,17 +214,69 @@ public class HaloAdmin {
         HTableDescriptor desc = new HTableDescriptor(
                 TableName.valueOf(tableProperty.getPrimaryTableName()));
         desc.addFamily(new HColumnDescriptor(PRIMARY_FAMILY).setMaxVersions(1));
-        hBaseAdmin.createTable(desc);
+        if (buckets != TableProperty.NO_SALT){
+            /* One region per salt bucket */
+            hBaseAdmin.createTable(desc, RowId.splitKeys(buckets));
+        } else {
+            hBaseAdmin.createTable(desc);
+        }
 
         /* Register this table */
         storeTableProperty(tableProperty);
+        invalidate(tableProperty.getName());
+    }
+
+    /* Checks the included and key columns of a column. */
+    private static void validateIndex(TableProperty tableProperty, int column) throws IOException{
+        ColumnProperty prop = tableProperty.getColumnProperty(column);
+        for (String label : prop.getIncludedColumns()){
+            if (tableProperty.findColumn(label) == -1){
+                throw new IOException("Included column " + label + " not found in table "
+                        + tableProperty.getName());
+            }
+        }
+        if (prop.getKeyColumns().length != 0 && !prop.isIndex()){
+            throw new IOException("Column " + prop.getLabel() + " has key columns but no index");
+        }
+        int[] key = tableProperty.getIndexKeyColumns(column);
+        for (int k = 1; k < key.length; ++k){
+            if (key[k] == -1){
+                throw new IOException("Key column " + prop.getKeyColumns()[k - 1]
+                        + " not found in table " + tableProperty.getName());
+            }
+            for (int j = 0; j < k; ++j){
+                if (key[j] == key[k]){
+                    throw new IOException("Column " + prop.getKeyColumns()[k - 1]
+                            + " appears twice in the index key of " + prop.getLabel());
+                }
+            }
+        }
+    }
+
+    private void createIndexTable(TableProperty tableProperty, int column) throws IOException{
+        HTableDescriptor idesc = new HTableDescriptor(
+                TableName.valueOf(tableProperty.getIndexTableName(column)));
+        idesc.addFamily(new HColumnDescriptor(INDEX_FAMILY).setMaxVersions(1));
+        try {
+            hBaseAdmin.createTable(idesc);
+        } catch (TableExistsException e){
+            /* Another admin is creating the same index, see createIndex() */
+        }
     }
 
     public HaloTable openTable(String tableName) throws IOException {
-        return new HaloTable(conf, readTableProperty(tableName));
+        TableProperty tableProperty = readTableProperty(tableName);
+        boolean legacy = tableProperty.getRowIdUpperBound() == RowIdAllocator.UNKNOWN_SEQUENCE;
+        HaloTable table = new HaloTable(session, tableProperty);
+        table.setSchemaSource(this);
+        if (legacy){
+            /* The table has created its row id sequence */
+            invalidate(tableName);
+        }
+        return table;
     }
 
-    public void dropTable(String tableName) throws IOException{
+    public synchronized void dropTable(String tableName) throws IOException{
         TableProperty tableProperty = readTableProperty(tableName);
         TableName primaryTableName = TableName.valueOf(tableProperty.getPrimaryTableName());
         hBaseAdmin.disableTable(primaryTableName);
@@ -110,6 +292,26 @@ public class HaloAdmin {
 
         /* Unregister this table */
         unregisterTable(tableProperty);
+        invalidate(tableName);
+    }
+
+    /* Gets the time in milliseconds a cached table property is trusted without validation. */
+    public long getMetadataTtl(){
+        return metadataTtl;
+    }
+
+    /**
+     * Sets the time in milliseconds a cached table property is trusted
+     * without validation, 0 to validate on every read.
+     */
+    public HaloAdmin setMetadataTtl(long metadataTtl){
+        this.metadataTtl = metadataTtl;
+        return this;
+    }
+
+    /* Drops the cached property of a table, the next read goes to the metadata table. */
+    public void invalidate(String tableName){
+        metadataCache.remove(tableName);
     }
 
     /**
@@ -119,15 +321,287 @@ public class HaloAdmin {
      */
     public List<String> listTables() throws IOException{
         ArrayList<String> tables = new ArrayList<String>();
-        ResultScanner scanner = metadataTable.getScanner(new Scan());
-        for (Result r = scanner.next(); r != null; r = scanner.next()){
-            tables.add(Bytes.toString(r.getRow()));
+        HTableInterface metadataTable = handlePool.acquire(METADATA_TABLE);
+        try {
+            ResultScanner scanner = metadataTable.getScanner(new Scan());
+            try {
+                for (Result r = scanner.next(); r != null; r = scanner.next()){
+                    tables.add(Bytes.toString(r.getRow()));
+                }
+            } finally {
+                scanner.close();
+            }
+        } finally {
+            handlePool.release(METADATA_TABLE, metadataTable);
         }
         return tables;
     }
 
-    public void createIndex(String tableName, String columnLabel){
-        /* TODO */
+    /* Gets the maximum number of rows per second that createIndex() indexes. */
+    public long getBackfillRate(){
+        return backfillRate;
+    }
+
+    /**
+     * Sets the maximum number of rows per second that createIndex() indexes,
+     * so that building an index leaves room for the foreground traffic.
+     * 0 for no limit.
+     */
+    public HaloAdmin setBackfillRate(long backfillRate){
+        this.backfillRate = Math.max(backfillRate, Throttle.UNLIMITED);
+        return this;
+    }
+
+    /* Gets the number of primary table regions that createIndex() scans at the same time. */
+    public int getBackfillParallelism(){
+        return backfillParallelism;
+    }
+
+    public HaloAdmin setBackfillParallelism(int backfillParallelism){
+        this.backfillParallelism = backfillParallelism > 0 ? backfillParallelism : HaloTable.DEFAULT_PARALLELISM;
+        return this;
+    }
+
+    /**
+     * Creates the index of a column and fills it from the rows already in
+     * the table, while the table stays open for reads and writes.
+     *
+     * The index is registered in the INDEX_BUILDING state first: tables
+     * opened from then on maintain it on every write, but queries don't use
+     * it. Tables opened by an admin earlier reload their properties on a
+     * write once they are older than the metadata TTL, so the build waits
+     * getMetadataTtl() after the registration before it starts. The regions of the primary
+     * table are then scanned by up to getBackfillParallelism() threads at
+     * getBackfillRate(). Rows written since the registration are indexed
+     * once more after that, for writes that had started before their table
+     * reloaded, and the index becomes INDEX_READY.
+     *
+     * Admins are expected to share the same metadata TTL. Tables made from
+     * a TableProperty, rather than opened by an admin, never reload it and
+     * must be reopened. Rows that such writes, or writes that run longer
+     * than the build, delete or change in place may leave the index record
+     * of their old values behind.
+     *
+     * Calling createIndex() on a column whose index is still being built
+     * resumes the build where it was interrupted. The index is registered
+     * with a check-and-put on the index flag of the column, so of admins
+     * creating the same index at the same time one registers it and the
+     * others resume its build.
+     *
+     * @param keyColumns Columns that follow the column in the index key,
+     *                   see ColumnProperty.setKeyColumns().
+     * @return Number of index records written.
+     */
+    public long createIndex(String tableName, String columnLabel, String... keyColumns) throws IOException{
+        int column;
+        List<IndexBuilder.Range> ranges;
+        synchronized (this){
+            TableProperty tableProperty = loadTableProperty(tableName).tableProperty;
+            column = tableProperty.findColumn(columnLabel);
+            if (column == -1){
+                throw new IOException("Column " + columnLabel + " not found in table " + tableName);
+            }
+
+            ColumnProperty prop = tableProperty.getColumnProperty(column);
+            if (prop.isIndexReady()){
+                throw new IOException("Column " + columnLabel + " is already indexed");
+            }
+
+            if (prop.isIndex()){
+                /* Resume an interrupted build */
+                ranges = IndexBuilder.readProgress(getMetadataRow(new Get(tableName.getBytes())), column);
+            } else {
+                prop.setIndex(true).setKeyColumns(keyColumns).setIndexState(ColumnProperty.INDEX_BUILDING);
+                validateIndex(tableProperty, column);
+                createIndexTable(tableProperty, column);
+
+                ranges = regionRanges(tableProperty.getPrimaryTableName());
+                Put put = new Put(tableName.getBytes());
+                put.add(METADATA_FAMILY, indexspec.get(column), Bytes.toBytes(true));
+                put.add(METADATA_FAMILY, indexStateSpec.get(column), Bytes.toBytes(ColumnProperty.INDEX_BUILDING));
+                if (prop.getKeyColumns().length != 0){
+                    put.add(METADATA_FAMILY, keyspec.get(column), Bytes.toBytes(joinLabels(prop.getKeyColumns())));
+                }
+                IndexBuilder.putProgress(put, column, ranges);
+                if (registerIndex(tableName, column, put)){
+                    bumpVersion(tableName);
+                } else {
+                    invalidate(tableName);
+                    if (loadTableProperty(tableName).tableProperty.getColumnProperty(column).isIndexReady()){
+                        throw new IOException("Column " + columnLabel + " is already indexed");
+                    }
+                    ranges = IndexBuilder.readProgress(getMetadataRow(new Get(tableName.getBytes())), column);
+                }
+            }
+        }
+
+        long registeredAt = readRegistrationTime(tableName, column);
+        sleepUntil(registeredAt + metadataTtl);
+
+        long written;
+        HaloTable table = new HaloTable(session, loadTableProperty(tableName).tableProperty);
+        try {
+            IndexBuilder builder = new IndexBuilder(table, column, handlePool, new Throttle(backfillRate));
+            written = builder.build(ranges, backfillParallelism);
+            /* Timestamps of the primary cells come from other servers, allow for their clocks */
+            written += builder.catchUp(regionRanges(table.getTableProperty().getPrimaryTableName()),
+                    registeredAt - metadataTtl, backfillParallelism);
+        } finally {
+            table.close();
+        }
+
+        Delete delete = new Delete(tableName.getBytes());
+        delete.deleteColumns(METADATA_FAMILY, indexStateSpec.get(column));
+        HTableInterface metadataTable = handlePool.acquire(METADATA_TABLE);
+        try {
+            metadataTable.delete(delete);
+        } finally {
+            handlePool.release(METADATA_TABLE, metadataTable);
+        }
+        bumpVersion(tableName);
+        return written;
+    }
+
+    /* Gets the time the index of a column was registered in the INDEX_BUILDING state. */
+    private long readRegistrationTime(String tableName, int column) throws IOException{
+        Get get = new Get(tableName.getBytes());
+        get.addColumn(METADATA_FAMILY, indexStateSpec.get(column));
+        Cell cell = getMetadataRow(get).getColumnLatestCell(METADATA_FAMILY, indexStateSpec.get(column));
+        if (cell == null){
+            throw new IOException("Index of column #" + column + " of table " + tableName + " is not being built");
+        }
+        return cell.getTimestamp();
+    }
+
+    private static void sleepUntil(long time) throws IOException{
+        try {
+            for (long now = System.currentTimeMillis(); now < time; now = System.currentTimeMillis()){
+                Thread.sleep(time - now);
+            }
+        } catch (InterruptedException e){
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the registration of an index if the column is not indexed yet.
+     * @return false if another admin has registered the index first.
+     */
+    private boolean registerIndex(String tableName, int column, Put put) throws IOException{
+        HTableInterface metadataTable = handlePool.acquire(METADATA_TABLE);
+        try {
+            return metadataTable.checkAndPut(tableName.getBytes(), METADATA_FAMILY,
+                    indexspec.get(column), Bytes.toBytes(false), put);
+        } finally {
+            handlePool.release(METADATA_TABLE, metadataTable);
+        }
+    }
+
+    /* Splits a table into the key ranges of its regions. */
+    private List<IndexBuilder.Range> regionRanges(String tableName) throws IOException{
+        List<HRegionLocation> regions = session.getConnection().locateRegions(TableName.valueOf(tableName));
+        byte[][] startKeys = new byte[regions.size()][];
+        byte[][] endKeys = new byte[regions.size()][];
+        for (int i = 0; i < startKeys.length; ++i){
+            startKeys[i] = regions.get(i).getRegionInfo().getStartKey();
+            endKeys[i] = regions.get(i).getRegionInfo().getEndKey();
+        }
+        return IndexBuilder.rangesOf(startKeys, endKeys);
+    }
+
+    /**
+     * Gathers statistics of all indexed columns and stores them in the
+     * metadata table. Columns with more than SAMPLE_ROWS rows by the last
+     * statistics are sampled.
+     * @param tableName
+     * @return The new statistics
+     * @throws IOException
+     */
+    public TableStatistics analyze(String tableName) throws IOException{
+        return analyze(tableName, false);
+    }
+
+    /**
+     * Gathers statistics of the indexed columns that have never been
+     * analyzed, or have become stale since the table grew by more than
+     * STALE_FRACTION of the analyzed rows.
+     * @param tableName
+     * @return The up-to-date statistics
+     * @throws IOException
+     */
+    public TableStatistics refreshStatistics(String tableName) throws IOException{
+        return analyze(tableName, true);
+    }
+
+    private TableStatistics analyze(String tableName, boolean staleOnly) throws IOException{
+        HaloTable table = new HaloTable(session, loadTableProperty(tableName).tableProperty);
+        try {
+            TableProperty tableProperty = table.getTableProperty();
+            TableStatistics old = tableProperty.getStatistics();
+            int columns = tableProperty.getNumberOfColumns();
+            ColumnStatistics[] stats = new ColumnStatistics[columns];
+            Put put = new Put(tableName.getBytes());
+            for (int i = 0; i < columns; ++i){
+                if (!tableProperty.getColumnProperty(i).isIndexReady()){
+                    continue;
+                }
+
+                ColumnStatistics previous = old != null ? old.getColumnStatistics(i) : null;
+                if (staleOnly && previous != null
+                        && !isStale(previous, tableProperty.getRowIdUpperBound())){
+                    stats[i] = previous;
+                    continue;
+                }
+
+                float sampleRate = previous == null || previous.getRowCount() <= SAMPLE_ROWS ?
+                        1.0f : (float) SAMPLE_ROWS / previous.getRowCount();
+                stats[i] = table.analyzeColumn(i, sampleRate);
+                putColumnStatistics(put, i, stats[i]);
+            }
+
+            Date now = new Date();
+            put.add(METADATA_FAMILY, METADATA_ANALYZED, Bytes.toBytes(now));
+            putMetadataRow(put);
+            bumpVersion(tableName);
+            return new TableStatistics(stats, now);
+        } finally {
+            table.close();
+        }
+    }
+
+    private static boolean isStale(ColumnStatistics stats, long rowIdUpperBound){
+        long grown = rowIdUpperBound - stats.getRowIdMark();
+        return grown > STALE_FRACTION * Math.max(stats.getRowCount(), 1);
+    }
+
+    private static void putColumnStatistics(Put put, int column, ColumnStatistics stats){
+        put.add(METADATA_FAMILY, statsRowsSpec.get(column), Bytes.toBytes(stats.getRowCount()));
+        put.add(METADATA_FAMILY, statsDistinctSpec.get(column), Bytes.toBytes(stats.getDistinctCount()));
+        put.add(METADATA_FAMILY, statsMinSpec.get(column), stats.getMin() != null ? stats.getMin() : Bytes.NULL);
+        put.add(METADATA_FAMILY, statsMaxSpec.get(column), stats.getMax() != null ? stats.getMax() : Bytes.NULL);
+        put.add(METADATA_FAMILY, statsHistogramSpec.get(column),
+                ColumnStatistics.histogramToBytes(stats.getHistogram()));
+        put.add(METADATA_FAMILY, statsMarkSpec.get(column), Bytes.toBytes(stats.getRowIdMark()));
+    }
+
+    private static TableStatistics readStatistics(Result result, int columns){
+        ColumnStatistics[] stats = new ColumnStatistics[columns];
+        for (int i = 0; i < columns; ++i){
+            byte[] rows = getMetadata(result, statsRowsSpec.get(i));
+            if (rows == null){
+                continue;
+            }
+            long rowCount = Bytes.toLong(rows);
+            stats[i] = new ColumnStatistics(
+                    rowCount,
+                    Bytes.toLong(getMetadata(result, statsDistinctSpec.get(i))),
+                    rowCount != 0 ? getMetadata(result, statsMinSpec.get(i)) : null,
+                    rowCount != 0 ? getMetadata(result, statsMaxSpec.get(i)) : null,
+                    ColumnStatistics.histogramFromBytes(getMetadata(result, statsHistogramSpec.get(i))),
+                    Bytes.toLong(getMetadata(result, statsMarkSpec.get(i)))
+            );
+        }
+        return new TableStatistics(stats, Bytes.toDate(getMetadata(result, METADATA_ANALYZED)));
     }
 
     static byte[] getMetadata(Result result, byte[] col){
@@ -135,13 +609,79 @@ public class HaloAdmin {
     }
 
     /**
-     * Reads table properties from metadata table
+     * Reads table properties from metadata table, or from the cache when
+     * the cached property is fresh or still has the current version.
      * @param tableName
-     * @return
+     * @return A copy of the table properties
      * @throws IOException
      */
     public TableProperty readTableProperty(String tableName) throws IOException{
-        Result result = metadataTable.get(new Get(tableName.getBytes()));
+        CachedProperty cached = metadataCache.get(tableName);
+        if (cached != null){
+            if (isFresh(cached)){
+                return cached.tableProperty.copy();
+            }
+            if (cached.isCurrent(readStamps(tableName))){
+                cached.validatedAt = System.currentTimeMillis();
+                return cached.tableProperty.copy();
+            }
+            invalidate(tableName);
+        }
+
+        cached = loadTableProperty(tableName);
+        metadataCache.put(tableName, cached);
+        return cached.tableProperty.copy();
+    }
+
+    private boolean isFresh(CachedProperty cached){
+        return System.currentTimeMillis() - cached.validatedAt < metadataTtl;
+    }
+
+    /**
+     * Reads only the schema version and incarnation stamps of a table.
+     * The version is bumped by changes of the metadata, the incarnation is
+     * drawn at random by createTable(), so a table that is dropped and
+     * created again never matches properties cached of the old one.
+     */
+    private Result readStamps(String tableName) throws IOException{
+        Get get = new Get(tableName.getBytes());
+        get.addColumn(METADATA_FAMILY, METADATA_VERSION);
+        get.addColumn(METADATA_FAMILY, METADATA_INCARNATION);
+        return getMetadataRow(get);
+    }
+
+    private static long versionOf(Result result){
+        byte[] version = getMetadata(result, METADATA_VERSION);
+        return version != null ? Bytes.toLong(version) : NO_VERSION;
+    }
+
+    private static long incarnationOf(Result result){
+        byte[] incarnation = getMetadata(result, METADATA_INCARNATION);
+        return incarnation != null ? Bytes.toLong(incarnation) : NO_INCARNATION;
+    }
+
+    /* Marks a change of the table's metadata to all cached copies. */
+    private void bumpVersion(String tableName) throws IOException{
+        HTableInterface metadataTable = handlePool.acquire(METADATA_TABLE);
+        try {
+            metadataTable.incrementColumnValue(tableName.getBytes(), METADATA_FAMILY, METADATA_VERSION, 1);
+        } finally {
+            handlePool.release(METADATA_TABLE, metadataTable);
+        }
+        invalidate(tableName);
+    }
+
+    /* Reads table properties from metadata table into the cache, bypassing it. */
+    TableProperty reloadTableProperty(String tableName) throws IOException{
+        CachedProperty cached = loadTableProperty(tableName);
+        metadataCache.put(tableName, cached);
+        return cached.tableProperty.copy();
+    }
+
+    /* Reads table properties from metadata table, bypassing the cache. */
+    private CachedProperty loadTableProperty(String tableName) throws IOException{
+        long now = System.currentTimeMillis();
+        Result result = getMetadataRow(new Get(tableName.getBytes()));
         if (result.isEmpty()){
             throw new IOException("Table " + tableName + " doesn't exist");
         }
@@ -155,6 +695,18 @@ public class HaloAdmin {
                         DataType.fromFaceName(new String(getMetadata(result, dtypespec.get(i)))),
                         Bytes.toBoolean(getMetadata(result, indexspec.get(i)))
                 );
+                byte[] included = getMetadata(result, includespec.get(i));
+                if (included != null && included.length != 0){
+                    columnProperties[i].setIncludedColumns(Bytes.toString(included).split(","));
+                }
+                byte[] keys = getMetadata(result, keyspec.get(i));
+                if (keys != null && keys.length != 0){
+                    columnProperties[i].setKeyColumns(Bytes.toString(keys).split(","));
+                }
+                byte[] state = getMetadata(result, indexStateSpec.get(i));
+                if (state != null){
+                    columnProperties[i].setIndexState(Bytes.toInt(state));
+                }
             }
         }
         catch (Exception e){
@@ -164,7 +716,17 @@ public class HaloAdmin {
         TableProperty prop = new TableProperty(tableName, columnProperties);
         prop.setOwner(Bytes.toString(getMetadata(result, METADATA_OWNER)));
         prop.setCreateDate(Bytes.toDate(getMetadata(result, METADATA_DATE)));
-        return prop;
+        byte[] format = getMetadata(result, METADATA_FORMAT);
+        prop.setFormatVersion(format != null ? Bytes.toInt(format) : TableProperty.FORMAT_PLAIN);
+        byte[] buckets = getMetadata(result, METADATA_SALT_BUCKETS);
+        prop.setSaltBuckets(buckets != null ? Bytes.toInt(buckets) : TableProperty.NO_SALT);
+        byte[] sequence = getMetadata(result, METADATA_ROWID_SEQUENCE);
+        prop.setNextRowId(sequence != null ? Bytes.toLong(sequence) : RowIdAllocator.UNKNOWN_SEQUENCE);
+        if (getMetadata(result, METADATA_ANALYZED) != null){
+            prop.setStatistics(readStatistics(result, columns));
+        }
+
+        return new CachedProperty(prop, incarnationOf(result), versionOf(result), now);
     }
 
     /**
@@ -178,17 +740,72 @@ public class HaloAdmin {
         put.add(METADATA_FAMILY, METADATA_DATE, Bytes.toBytes(tableProperty.getCreateDate()));
         put.add(METADATA_FAMILY, METADATA_OWNER, Bytes.toBytes(tableProperty.getOwner()));
         put.add(METADATA_FAMILY, METADATA_COLUMNS, Bytes.toBytes(columns));
+        put.add(METADATA_FAMILY, METADATA_ROWID_SEQUENCE, Bytes.toBytes(tableProperty.getRowIdUpperBound()));
+        put.add(METADATA_FAMILY, METADATA_VERSION, Bytes.toBytes(1L));
+        put.add(METADATA_FAMILY, METADATA_INCARNATION, Bytes.toBytes(newIncarnation()));
+        put.add(METADATA_FAMILY, METADATA_FORMAT, Bytes.toBytes(tableProperty.getFormatVersion()));
+        if (tableProperty.getSaltBuckets() != TableProperty.NO_SALT){
+            put.add(METADATA_FAMILY, METADATA_SALT_BUCKETS, Bytes.toBytes(tableProperty.getSaltBuckets()));
+        }
 
         for (int i = 0; i < columns; ++i){
             ColumnProperty prop = tableProperty.getColumnProperty(i);
             put.add(METADATA_FAMILY, labelspec.get(i), Bytes.toBytes(prop.getLabel()));
             put.add(METADATA_FAMILY, dtypespec.get(i), prop.getDataType().getFaceName().getBytes());
             put.add(METADATA_FAMILY, indexspec.get(i), Bytes.toBytes(prop.isIndex()));
+            if (prop.getIncludedColumns().length != 0){
+                put.add(METADATA_FAMILY, includespec.get(i), Bytes.toBytes(joinLabels(prop.getIncludedColumns())));
+            }
+            if (prop.getKeyColumns().length != 0){
+                put.add(METADATA_FAMILY, keyspec.get(i), Bytes.toBytes(joinLabels(prop.getKeyColumns())));
+            }
+        }
+        putMetadataRow(put);
+    }
+
+    private static long newIncarnation(){
+        long incarnation;
+        do {
+            incarnation = incarnations.nextLong();
+        } while (incarnation == NO_INCARNATION);
+        return incarnation;
+    }
+
+    private static String joinLabels(String[] labels){
+        StringBuilder joined = new StringBuilder();
+        for (String label : labels){
+            if (joined.length() != 0){
+                joined.append(',');
+            }
+            joined.append(label);
         }
-        metadataTable.put(put);
+        return joined.toString();
     }
 
     private void unregisterTable(TableProperty tableProperty) throws IOException {
-        metadataTable.delete(new Delete(tableProperty.getName().getBytes()));
+        HTableInterface metadataTable = handlePool.acquire(METADATA_TABLE);
+        try {
+            metadataTable.delete(new Delete(tableProperty.getName().getBytes()));
+        } finally {
+            handlePool.release(METADATA_TABLE, metadataTable);
+        }
+    }
+
+    private Result getMetadataRow(Get get) throws IOException {
+        HTableInterface metadataTable = handlePool.acquire(METADATA_TABLE);
+        try {
+            return metadataTable.get(get);
+        } finally {
+            handlePool.release(METADATA_TABLE, metadataTable);
+        }
+    }
+
+    private void putMetadataRow(Put put) throws IOException {
+        HTableInterface metadataTable = handlePool.acquire(METADATA_TABLE);
+        try {
+            metadataTable.put(put);
+        } finally {
+            handlePool.release(METADATA_TABLE, metadataTable);
+        }
     }
 }
@@ -0,0 +1,115 @@
+package halo.core;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Owns one connection to the cluster that is shared by a HaloAdmin and
+ * all tables opened through it.
+ *
+ * Tables opened by a session borrow their table handles from the pool of
+ * the session, opening and closing a table is therefore cheap enough to
+ * be done for every request. A session may be shared by threads and
+ * should be closed when the application shuts down.
+ *
+ * Async tables of a session run on one I/O executor of getIoThreads()
+ * threads, created on first use.
+ */
+public class HaloSession {
+    private Configuration conf;
+    private HConnection connection;
+    private TableHandlePool handlePool;
+    private HaloAdmin admin;
+    private ExecutorService ioExecutor;
+    private int ioThreads = AsyncHaloTable.DEFAULT_IO_THREADS;
+
+    public HaloSession(Configuration conf) throws IOException {
+        this.conf = conf;
+        this.connection = HConnectionManager.createConnection(conf);
+        this.handlePool = new TableHandlePool(conf, connection);
+    }
+
+    public Configuration getConfiguration() {
+        return conf;
+    }
+
+    public HConnection getConnection() {
+        return connection;
+    }
+
+    /* Gets the admin of this session, created on first use. */
+    public synchronized HaloAdmin getAdmin() throws IOException {
+        if (admin == null) {
+            admin = new HaloAdmin(this);
+        }
+        return admin;
+    }
+
+    public HaloTable openTable(String tableName) throws IOException {
+        return getAdmin().openTable(tableName);
+    }
+
+    /**
+     * Opens a table whose operations run on the I/O executor of this
+     * session and return CompletableFutures. Closing the async table
+     * closes the table it runs on.
+     */
+    public AsyncHaloTable openAsyncTable(String tableName) throws IOException {
+        return new AsyncHaloTable(openTable(tableName), getIoExecutor(), false, true);
+    }
+
+    /* Gets the number of threads of the I/O executor. */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Sets the number of threads of the I/O executor, which bounds the
+     * number of async operations run at the same time. Takes effect
+     * before the first async table is opened.
+     */
+    public HaloSession setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads > 0 ? ioThreads : AsyncHaloTable.DEFAULT_IO_THREADS;
+        return this;
+    }
+
+    /* Gets the I/O executor shared by async tables of this session, creates it on first use. */
+    public synchronized ExecutorService getIoExecutor() {
+        if (ioExecutor == null) {
+            ioExecutor = AsyncHaloTable.newIoExecutor(ioThreads, "session");
+        }
+        return ioExecutor;
+    }
+
+    /* Gets counters of the table handles lent to tables of this session. */
+    public HandleMetrics getHandleMetrics() {
+        return handlePool.getMetrics();
+    }
+
+    TableHandlePool getHandlePool() {
+        return handlePool;
+    }
+
+    /**
+     * Stops the I/O executor, failing queued async operations, and closes
+     * all table handles and the connection.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (ioExecutor != null) {
+                AsyncHaloTable.shutdownNow(ioExecutor);
+                ioExecutor = null;
+            }
+            if (admin != null) {
+                admin.closeAdmin();
+                admin = null;
+            }
+        }
+        handlePool.close();
+        connection.close();
+    }
+}
@@ -4,12 +4,29 @@ import halo.common.Bytes;
 import halo.common.ColumnSpecifierHelper;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.RandomRowFilter;
 
 import java.io.*;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Provides methods for data manipulation for a single Halo table.
+ *
+ * A HaloTable may be shared by threads. Every operation borrows the
+ * HBase table handles it needs from a pool and gives them back when
+ * done, row ids are allocated without locking.
  */
 public class HaloTable {
     static class ColumnSpecifierFormatter implements ColumnSpecifierHelper.Formatter {
@@ -19,77 +36,506 @@ public class HaloTable {
         }
     }
 
+    /**
+     * Collects the primary and index mutations of a group of rows so that
+     * they can be sent with one HTable.put(List) call per table.
+     */
+    class PutBatch {
+        private ArrayList<Put> primaryPuts;
+        private ArrayList<ArrayList<Put>> indexPuts;
+        private ArrayList<ArrayList<Delete>> indexDeletes;
+
+        PutBatch() {
+            int columns = tableProperty.getNumberOfColumns();
+            primaryPuts = new ArrayList<Put>();
+            indexPuts = new ArrayList<ArrayList<Put>>(columns);
+            indexDeletes = new ArrayList<ArrayList<Delete>>(columns);
+            for (int i = 0; i < columns; ++i) {
+                indexPuts.add(indexTableNames[i] != null ? new ArrayList<Put>() : null);
+                indexDeletes.add(indexTableNames[i] != null ? new ArrayList<Delete>() : null);
+            }
+        }
+
+        /* Gets the number of rows buffered since last flush. */
+        int size() {
+            return primaryPuts.size();
+        }
+
+        /**
+         * Adds a new row.
+         * @param values Serialized values of all columns, null for the
+         *               columns that are not written.
+         */
+        void add(long rowId, byte[][] values) throws IOException {
+            byte[][] stored = new byte[values.length][];
+            for (int i = 0; i < values.length; ++i) {
+                if (values[i] != null) {
+                    stored[i] = tableProperty.toStoredValue(i, values[i]);
+                }
+            }
+
+            byte[] rowid = RowId.valueOf(rowId);
+            addPrimary(rowId, stored);
+            for (int i = 0; i < stored.length; ++i) {
+                if (stored[i] != null && indexTableNames[i] != null) {
+                    addIndex(i, rowid, stored);
+                }
+            }
+        }
+
+        /* Writes the non-null stored values to the primary table. */
+        void addPrimary(long rowId, byte[][] stored) {
+            Put primaryPut = new Put(rowKey(rowId));
+            for (int i = 0; i < stored.length; ++i) {
+                if (stored[i] != null) {
+                    primaryPut.add(HaloAdmin.PRIMARY_FAMILY, colspec.get(i), stored[i]);
+                }
+            }
+            primaryPuts.add(primaryPut);
+        }
+
+        /**
+         * Writes the index record of a column, with the values of the
+         * columns included in the index.
+         */
+        void addIndex(int column, byte[] rowid, byte[][] stored) {
+            Put put = new Put(indexKey(column, stored, rowid));
+            put.add(HaloAdmin.INDEX_FAMILY, Bytes.NULL, Bytes.NULL);
+            for (int included : tableProperty.getIncludedColumns(column)) {
+                if (stored[included] != null) {
+                    put.add(HaloAdmin.INDEX_FAMILY, colspec.get(included), stored[included]);
+                }
+            }
+            indexPuts.get(column).add(put);
+        }
+
+        /* Removes the index record of a column, made of the stored values of a row. */
+        void deleteIndex(int column, byte[] rowid, byte[][] stored) {
+            indexDeletes.get(column).add(new Delete(indexKey(column, stored, rowid)));
+        }
+
+        /**
+         * Sends all buffered mutations. Index records are written ahead of
+         * the primary records, same as a single row insert does.
+         */
+        void flush() throws IOException {
+            for (int i = 0; i < indexPuts.size(); ++i) {
+                ArrayList<Delete> deletes = indexDeletes.get(i);
+                ArrayList<Put> puts = indexPuts.get(i);
+                if (puts == null || (puts.isEmpty() && deletes.isEmpty())) {
+                    continue;
+                }
+
+                HTableInterface table = handlePool.acquire(indexTableNames[i]);
+                try {
+                    if (!deletes.isEmpty()) {
+                        table.delete(deletes);
+                        deletes.clear();
+                    }
+                    if (!puts.isEmpty()) {
+                        table.put(puts);
+                        puts.clear();
+                    }
+                } finally {
+                    handlePool.release(indexTableNames[i], table);
+                }
+            }
+            if (!primaryPuts.isEmpty()) {
+                HTableInterface table = handlePool.acquire(primaryTableName);
+                try {
+                    table.put(primaryPuts);
+                } finally {
+                    handlePool.release(primaryTableName, table);
+                }
+                primaryPuts.clear();
+            }
+        }
+    }
+
+    /**
+     * Receives the row keys of an index scan.
+     */
+    private interface IndexKeyVisitor {
+        void visit(byte[] row);
+    }
+
     static ColumnSpecifierHelper colspec =
             new ColumnSpecifierHelper(new ColumnSpecifierFormatter(), 32);
 
-    private TableProperty tableProperty;
+    /* Default number of rows sent to HBase in one batch */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /* Default number of rows fetched from HBase with one multi-Get */
+    public static final int DEFAULT_FETCH_SIZE = 100;
+
+    /* Default number of batches that may be in flight at the same time */
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    /* Rows of a fetch are read with one multi-Get */
+    public static final int FETCH_BATCHED = 0;
+
+    /* Rows of a fetch are read with one Get after another */
+    public static final int FETCH_SERIAL = 1;
+
+    /* Rows of a fetch are read with one Get each, at the same time, see FanOut */
+    public static final int FETCH_FAN_OUT = 2;
+
+    private volatile TableProperty tableProperty;
     private Configuration conf;
-    private HTable primaryTable;
-    private HTable[] indexTables;
+    private String primaryTableName;
+    private volatile String[] indexTableNames;
+    private volatile int[][] indexKeyColumns;
+    private volatile ColumnProperty[][] indexKeys;
+    private HaloAdmin schemaSource;
+    private volatile long schemaLoadedAt = System.currentTimeMillis();
+    private final ReentrantReadWriteLock schemaLock = new ReentrantReadWriteLock();
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile int fetchSize = DEFAULT_FETCH_SIZE;
+    private volatile int parallelism = DEFAULT_PARALLELISM;
+    private volatile int fetchMode = FETCH_BATCHED;
+    private FanOut.Limit fanOutLimit = new FanOut.Limit(FanOut.DEFAULT_TABLE_LIMIT);
+    private TableHandlePool handlePool;
+    private boolean ownsHandlePool;
+    private RowIdAllocator rowIdAllocator;
+    private ExecutorService executor;
 
+    /**
+     * Opens a table with handles of its own, which are closed by close().
+     */
     public HaloTable(Configuration conf, TableProperty tableProperty) throws IOException {
+        this(conf, tableProperty, new TableHandlePool(conf), true);
+    }
+
+    /**
+     * Opens a table that borrows its handles from a session.
+     */
+    public HaloTable(HaloSession session, TableProperty tableProperty) throws IOException {
+        this(session.getConfiguration(), tableProperty, session.getHandlePool(), false);
+    }
+
+    private HaloTable(Configuration conf, TableProperty tableProperty,
+                      TableHandlePool handlePool, boolean ownsHandlePool) throws IOException {
         this.conf = conf;
-        this.tableProperty = tableProperty;
+        this.handlePool = handlePool;
+        this.ownsHandlePool = ownsHandlePool;
 
+        /* Handles of the primary and index tables are opened on first use */
+        primaryTableName = tableProperty.getPrimaryTableName();
+        setSchema(tableProperty);
+
+        /**
+         * Row ids are leased from the sequence in the metadata table.
+         * Tables created before the sequence existed get it initialized
+         * once, from a binary search through the row id space.
+         */
+        rowIdAllocator = new RowIdAllocator(handlePool, tableProperty);
+        if (tableProperty.getRowIdUpperBound() == RowIdAllocator.UNKNOWN_SEQUENCE) {
+            rowIdAllocator.initialize(findRowIdUpperBound());
+        }
+    }
+
+    /**
+     * Lets the table reload its properties from an admin, see lockSchema().
+     * Tables opened by HaloAdmin.openTable() have one.
+     */
+    void setSchemaSource(HaloAdmin admin) {
+        this.schemaSource = admin;
+    }
+
+    private void setSchema(TableProperty tableProperty) {
         int columns = tableProperty.getNumberOfColumns();
-        primaryTable = new HTable(conf, tableProperty.getPrimaryTableName());
-        indexTables = new HTable[columns];
+        String[] indexTableNames = new String[columns];
+        int[][] indexKeyColumns = new int[columns][];
+        ColumnProperty[][] indexKeys = new ColumnProperty[columns][];
         for (int i = 0; i < columns; ++i) {
             if (tableProperty.getColumnProperty(i).isIndex()) {
-                indexTables[i] = new HTable(conf, tableProperty.getIndexTableName(i));
+                indexTableNames[i] = tableProperty.getIndexTableName(i);
+                indexKeyColumns[i] = tableProperty.getIndexKeyColumns(i);
+                indexKeys[i] = tableProperty.getIndexKey(i);
             }
         }
+        this.indexTableNames = indexTableNames;
+        this.indexKeyColumns = indexKeyColumns;
+        this.indexKeys = indexKeys;
+        this.tableProperty = tableProperty;
+    }
 
-        /**
-         * We do NOT book next row ID or total number of rows of the
-         * table in the metadata table.
-         * NextRowId is determined by binary search through row id
-         * space every time opening the table.
-         *
-         * TODO:
-         * Some optimization may be possible by providing a probe hint
-         */
-        tableProperty.setNextRowId(findRowIdUpperBound());
+    /**
+     * Takes the schema for a write. Properties older than the metadata TTL
+     * of the admin the table was opened by are reloaded first, so writes
+     * maintain an index created after the table was opened from then on,
+     * see HaloAdmin.createIndex(). The schema doesn't change while a write
+     * holds it. One writer reloads under the write lock, the writers that
+     * wait for it find the schema fresh and don't read it again.
+     */
+    private Lock lockSchema() throws IOException {
+        HaloAdmin admin = schemaSource;
+        if (admin != null && System.currentTimeMillis() - schemaLoadedAt >= admin.getMetadataTtl()) {
+            Lock lock = schemaLock.writeLock();
+            lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                if (now - schemaLoadedAt >= admin.getMetadataTtl()) {
+                    setSchema(admin.reloadTableProperty(tableProperty.getName()));
+                    schemaLoadedAt = now;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Lock lock = schemaLock.readLock();
+        lock.lock();
+        return lock;
     }
 
     public NonQueryResult insert(int[] selectedCols, byte[][] values) throws IOException {
-        if (selectedCols.length != values.length) {
-            throw new IOException("Number of columns and values mismatch");
-        }
+        Lock schema = lockSchema();
+        try {
+            if (selectedCols.length != values.length) {
+                throw new IOException("Number of columns and values mismatch");
+            }
 
-        long rowId = tableProperty.getNextRowId();
-        tableProperty.setNextRowId(rowId + 1);
+            long rowId = rowIdAllocator.allocate(1);
 
-        int columns = tableProperty.getNumberOfColumns();
-        byte[][] orderedValues = new byte[columns][];
-        for (int i = 0; i < columns; ++i) {
-            orderedValues[i] = Bytes.NULL;
+            int columns = tableProperty.getNumberOfColumns();
+            byte[][] orderedValues = new byte[columns][];
+            for (int i = 0; i < columns; ++i) {
+                orderedValues[i] = Bytes.NULL;
+            }
+            reorderValues(selectedCols, values, orderedValues);
+
+            putValues(rowId, orderedValues);
+
+            NonQueryResult nonQueryResult = new NonQueryResult();
+            nonQueryResult.setRowsAffected(1);
+            return nonQueryResult;
+        } finally {
+            schema.unlock();
         }
-        reorderValues(selectedCols, values, orderedValues);
+    }
+
+    /**
+     * Inserts a group of rows. A contiguous block of row ids is allocated
+     * for the rows at once, and mutations are flushed to the primary table
+     * and the index tables in batches of getBatchSize() rows.
+     *
+     * @param selectedCols Columns that values of each row are given for.
+     * @param rows Values of each row, ordered as selectedCols.
+     * @return Number of rows written.
+     * @throws IOException
+     */
+    public NonQueryResult insertBatch(int[] selectedCols, List<byte[][]> rows) throws IOException {
+        Lock schema = lockSchema();
+        try {
+            for (byte[][] values : rows) {
+                if (selectedCols.length != values.length) {
+                    throw new IOException("Number of columns and values mismatch");
+                }
+            }
 
-        putValues(RowId.valueOf(rowId), orderedValues);
+            long rowId = rowIdAllocator.allocate(rows.size());
+            int columns = tableProperty.getNumberOfColumns();
+            byte[][] orderedValues = new byte[columns][];
+            PutBatch batch = new PutBatch();
+            for (byte[][] values : rows) {
+                for (int i = 0; i < columns; ++i) {
+                    orderedValues[i] = Bytes.NULL;
+                }
+                reorderValues(selectedCols, values, orderedValues);
+                batch.add(rowId++, orderedValues);
+                if (batch.size() >= batchSize) {
+                    batch.flush();
+                }
+            }
+            batch.flush();
 
-        NonQueryResult nonQueryResult = new NonQueryResult();
-        nonQueryResult.setRowsAffected(1);
-        return nonQueryResult;
+            NonQueryResult nonQueryResult = new NonQueryResult();
+            nonQueryResult.setRowsAffected(rows.size());
+            return nonQueryResult;
+        } finally {
+            schema.unlock();
+        }
     }
 
+    /**
+     * Updates the selected columns of the target rows.
+     * Index records of the updated rows are maintained: when an indexed
+     * column, or a column included in an index, is updated, the current
+     * values are read in batches of getFetchSize() rows, the old index
+     * records are removed and new ones are written. Target rows that
+     * don't exist are skipped in that case.
+     */
     public NonQueryResult update(
             int[] selectedCols, byte[][] values, RowSet target) throws IOException {
-        if (selectedCols.length != values.length) {
-            throw new IOException("Number of columns and values mismatch");
-        }
+        Lock schema = lockSchema();
+        try {
+            if (selectedCols.length != values.length) {
+                throw new IOException("Number of columns and values mismatch");
+            }
 
-        byte[][] orderedValues = new byte[tableProperty.getNumberOfColumns()][];
-        for (long r = 0; r < target.size(); ++r) {
-            byte[] rowid = target.get(r);
+            int columns = tableProperty.getNumberOfColumns();
+            byte[][] orderedValues = new byte[columns][];
             reorderValues(selectedCols, values, orderedValues);
-            putValues(rowid, orderedValues);
+            byte[][] newValues = new byte[columns][];
+            for (int i = 0; i < columns; ++i) {
+                if (orderedValues[i] != null) {
+                    newValues[i] = tableProperty.toStoredValue(i, orderedValues[i]);
+                }
+            }
+
+            int[] maintained = getMaintainedIndexes(selectedCols);
+            if (maintained.length == 0) {
+                PutBatch batch = new PutBatch();
+                for (long r = 0; r < target.size(); ++r) {
+                    batch.addPrimary(target.getRowId(r), newValues);
+                    if (batch.size() >= batchSize) {
+                        batch.flush();
+                    }
+                }
+                batch.flush();
+
+                NonQueryResult nonQueryResult = new NonQueryResult();
+                nonQueryResult.setRowsAffected(target.size());
+                return nonQueryResult;
+            }
+
+            int[] readCols = getIndexedValueColumns(maintained, true);
+            long total = target.size();
+            long updated = 0;
+            Future<byte[][][]> reading = total != 0 ? fetch(target, 0, Math.min(total, fetchSize), readCols) : null;
+            try {
+                for (long r = 0; r < total; r += fetchSize) {
+                    long stop = Math.min(total, r + fetchSize);
+                    byte[][][] oldValues = waitFor(reading);
+                    reading = stop < total ? fetch(target, stop, Math.min(total, stop + fetchSize), readCols) : null;
+                    updated += updateRows(target, r, newValues, maintained, readCols, oldValues);
+                }
+            } finally {
+                if (reading != null) {
+                    reading.cancel(true);
+                }
+            }
+
+            NonQueryResult nonQueryResult = new NonQueryResult();
+            nonQueryResult.setRowsAffected(updated);
+            return nonQueryResult;
+        } finally {
+            schema.unlock();
+        }
+    }
+
+    private long updateRows(RowSet target, long start, byte[][] newValues, int[] maintained,
+                            int[] readCols, byte[][][] oldValues) throws IOException {
+        int columns = tableProperty.getNumberOfColumns();
+        PutBatch batch = new PutBatch();
+        long updated = 0;
+        for (int r = 0; r < oldValues.length; ++r) {
+            if (oldValues[r] == null) {
+                continue;
+            }
+
+            long rowId = target.getRowId(start + r);
+            byte[] rowKey = RowId.valueOf(rowId);
+            byte[][] oldRow = new byte[columns][];
+            byte[][] newRow = new byte[columns][];
+            for (int i = 0; i < readCols.length; ++i) {
+                oldRow[readCols[i]] = oldValues[r][i];
+                newRow[readCols[i]] = oldValues[r][i];
+            }
+            for (int i = 0; i < columns; ++i) {
+                if (newValues[i] != null) {
+                    newRow[i] = newValues[i];
+                }
+            }
+
+            for (int column : maintained) {
+                /* A record of an unchanged key is overwritten instead */
+                if (oldRow[column] != null
+                        && !Arrays.equals(indexKey(column, oldRow, rowKey), indexKey(column, newRow, rowKey))) {
+                    batch.deleteIndex(column, rowKey, oldRow);
+                }
+                if (newRow[column] != null) {
+                    batch.addIndex(column, rowKey, newRow);
+                }
+            }
+            batch.addPrimary(rowId, newValues);
+            ++updated;
+        }
+        batch.flush();
+        return updated;
+    }
+
+    /* Gets the indexed columns whose index records change when the selected columns change. */
+    private int[] getMaintainedIndexes(int[] selectedCols) {
+        ArrayList<Integer> maintained = new ArrayList<Integer>();
+        for (int column : getIndexedColumns()) {
+            boolean affected = false;
+            for (int col : selectedCols) {
+                for (int key : indexKeyColumns[column]) {
+                    affected |= col == key;
+                }
+                for (int included : tableProperty.getIncludedColumns(column)) {
+                    affected |= col == included;
+                }
+            }
+            if (affected) {
+                maintained.add(column);
+            }
+        }
+        int[] result = new int[maintained.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = maintained.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the columns that index records of the given indexed columns are
+     * made of: the key columns, and the included columns if asked for.
+     */
+    private int[] getIndexedValueColumns(int[] indexedCols, boolean withIncluded) {
+        TreeSet<Integer> columns = new TreeSet<Integer>();
+        for (int column : indexedCols) {
+            for (int key : indexKeyColumns[column]) {
+                columns.add(key);
+            }
+            if (withIncluded) {
+                for (int included : tableProperty.getIncludedColumns(column)) {
+                    columns.add(included);
+                }
+            }
         }
+        int[] result = new int[columns.size()];
+        int i = 0;
+        for (int column : columns) {
+            result[i++] = column;
+        }
+        return result;
+    }
+
+    /* Makes the primary table row key of a row id, see RowId.toRowKey(). */
+    byte[] rowKey(long rowId) {
+        return RowId.toRowKey(rowId, tableProperty.getSaltBuckets());
+    }
+
+    /* Gets the row id of a primary table row key. */
+    long rowIdOf(byte[] rowKey) {
+        return RowId.ofRowKey(rowKey, tableProperty.getSaltBuckets());
+    }
 
-        NonQueryResult nonQueryResult = new NonQueryResult();
-        nonQueryResult.setRowsAffected(target.size());
-        return nonQueryResult;
+    /**
+     * Makes the row key of the index record of a column.
+     * @param stored Stored values of the row, by column. Key columns
+     *               without a value are keyed as empty values.
+     */
+    byte[] indexKey(int column, byte[][] stored, byte[] rowid) {
+        int[] key = indexKeyColumns[column];
+        byte[][] values = new byte[key.length][];
+        for (int i = 0; i < key.length; ++i) {
+            values[i] = stored[key[i]] != null ? stored[key[i]] : Bytes.NULL;
+        }
+        return IndexKey.valueOf(indexKeys[column], values, rowid);
     }
 
     private byte[][] reorderValues(int[] columns, byte[][] values, byte[][] orderedValues) {
@@ -99,140 +545,1001 @@ public class HaloTable {
         return orderedValues;
     }
 
+    /**
+     * Deletes the target rows together with their index records.
+     * Indexed values are read with multi-Gets of getFetchSize() rows that
+     * fetch only the index key columns. Reading of the next batch is
+     * overlapped with the batched Deletes of the current one.
+     */
     public NonQueryResult delete(RowSet target) throws IOException {
-        for (long r = 0; r < target.size(); ++r) {
-            byte[] rowKey = target.get(r);
-            Result result = primaryTable.get(new Get(rowKey));
+        Lock schema = lockSchema();
+        try {
+            int[] indexedCols = getIndexedColumns();
+            int[] keyCols = getIndexedValueColumns(indexedCols, false);
+            long total = target.size();
+            Future<byte[][][]> reading = null;
+            try {
+                if (indexedCols.length != 0 && total != 0) {
+                    reading = fetch(target, 0, Math.min(total, fetchSize), keyCols);
+                }
+                for (long r = 0; r < total; r += fetchSize) {
+                    long stop = Math.min(total, r + fetchSize);
+                    byte[][][] indexedValues = null;
+                    if (reading != null) {
+                        indexedValues = waitFor(reading);
+                        reading = null;
+                        if (stop < total) {
+                            long next = Math.min(total, stop + fetchSize);
+                            reading = fetch(target, stop, next, keyCols);
+                        }
+                    }
+                    deleteRows(target, r, stop, indexedCols, keyCols, indexedValues);
+                }
+            } finally {
+                if (reading != null) {
+                    reading.cancel(true);
+                }
+            }
 
-            Delete del = new Delete(rowKey);
-            primaryTable.delete(del);
+            NonQueryResult result = new NonQueryResult();
+            result.setRowsAffected(total);
+            return result;
+        } finally {
+            schema.unlock();
+        }
+    }
 
-            int columns = tableProperty.getNumberOfColumns();
-            for (int i = 0; i < columns; ++i) {
-                if (tableProperty.getColumnProperty(i).isIndex()) {
-                    indexTables[i].delete(
-                            new Delete(Bytes.concat(getColumnValue(result, i), rowKey)));
+    private void deleteRows(RowSet target, long start, long stop, int[] indexedCols,
+                            int[] keyCols, byte[][][] indexedValues) throws IOException {
+        byte[][] row = new byte[tableProperty.getNumberOfColumns()][];
+        ArrayList<Delete> primaryDeletes = new ArrayList<Delete>((int) (stop - start));
+        ArrayList<ArrayList<Delete>> indexDeletes = new ArrayList<ArrayList<Delete>>(indexedCols.length);
+        for (int i = 0; i < indexedCols.length; ++i) {
+            indexDeletes.add(new ArrayList<Delete>());
+        }
+
+        for (long r = start; r < stop; ++r) {
+            long rowId = target.getRowId(r);
+            byte[] rowKey = RowId.valueOf(rowId);
+            primaryDeletes.add(new Delete(rowKey(rowId)));
+
+            byte[][] values = indexedValues != null ? indexedValues[(int) (r - start)] : null;
+            if (values == null) {
+                continue;
+            }
+            for (int i = 0; i < keyCols.length; ++i) {
+                row[keyCols[i]] = values[i];
+            }
+            for (int i = 0; i < indexedCols.length; ++i) {
+                if (row[indexedCols[i]] != null) {
+                    indexDeletes.get(i).add(new Delete(indexKey(indexedCols[i], row, rowKey)));
                 }
             }
         }
-        NonQueryResult result = new NonQueryResult();
-        result.setRowsAffected(target.size());
-        return result;
+
+        HTableInterface table = handlePool.acquire(primaryTableName);
+        try {
+            table.delete(primaryDeletes);
+        } finally {
+            handlePool.release(primaryTableName, table);
+        }
+        for (int i = 0; i < indexedCols.length; ++i) {
+            if (!indexDeletes.get(i).isEmpty()) {
+                String tableName = indexTableNames[indexedCols[i]];
+                table = handlePool.acquire(tableName);
+                try {
+                    table.delete(indexDeletes.get(i));
+                } finally {
+                    handlePool.release(tableName, table);
+                }
+            }
+        }
+    }
+
+    /* Gets the columns that have an index table. */
+    private int[] getIndexedColumns() {
+        int columns = tableProperty.getNumberOfColumns();
+        int n = 0;
+        for (int i = 0; i < columns; ++i) {
+            if (tableProperty.getColumnProperty(i).isIndex()) {
+                ++n;
+            }
+        }
+        int[] indexed = new int[n];
+        for (int i = 0, j = 0; i < columns; ++i) {
+            if (tableProperty.getColumnProperty(i).isIndex()) {
+                indexed[j++] = i;
+            }
+        }
+        return indexed;
     }
 
+    /**
+     * Fetches values of the target rows. Rows are returned in the order of
+     * target, missing rows are skipped.
+     */
     public QueryResult select(int[] selectedCols, RowSet target) throws IOException {
         QueryResult queryResult = new QueryResult(selectedCols.length);
-        for (long r = 0; r < target.size(); ++r) {
-            byte[][] values = queryValues(target.get(r), selectedCols);
-            if (values != null) {
-                queryResult.add(values);
+        QueryCursor cursor = query(selectedCols, target);
+        try {
+            while (cursor.next()) {
+                queryResult.add(cursor.getRow());
             }
+        } finally {
+            cursor.close();
         }
         return queryResult;
     }
 
+    /**
+     * Opens a cursor over values of the target rows. Rows are fetched with
+     * multi-Gets of getFetchSize() rows, up to getParallelism() of which are
+     * fetched ahead of the reader. Rows are returned in the order of target,
+     * missing rows are skipped.
+     */
+    public QueryCursor query(int[] selectedCols, RowSet target) {
+        return new QueryCursor(this, selectedCols, target, parallelism);
+    }
+
+    /* Converts stored values of a fetched row back to serialized values. */
+    void decodeRow(int[] selectedCols, byte[][] row) {
+        for (int i = 0; i < selectedCols.length; ++i) {
+            if (row[i] != null) {
+                row[i] = tableProperty.fromStoredValue(selectedCols[i], row[i]);
+            }
+        }
+    }
+
+    /**
+     * Starts fetching rows [start, stop) of target in background.
+     * Values are fetched in their stored form.
+     */
+    Future<byte[][][]> fetch(RowSet target, long start, long stop, int[] selectedCols) {
+        return fetch(target, start, stop, selectedCols, null);
+    }
+
+    private Future<byte[][][]> fetch(RowSet target, long start, long stop,
+                                     int[] selectedCols, Filter filter) {
+        return getExecutor().submit(
+                fetchTask(makeGets(target, start, stop, selectedCols, filter), selectedCols));
+    }
+
     /**
      * Write
      * @param rowid
      * @param values
      * @throws IOException
      */
-    private void putValues(byte[] rowid, byte[][] values) throws IOException {
-        Put primaryPut = new Put(rowid);
-        int columns = tableProperty.getNumberOfColumns();
-        for (int i = 0; i < columns; ++i) {
-            byte[] value = values[i];
-            if (value == null) {
-                continue;
+    private void putValues(long rowId, byte[][] values) throws IOException {
+        PutBatch batch = new PutBatch();
+        batch.add(rowId, values);
+        batch.flush();
+    }
+
+    private List<Get> makeGets(RowSet target, long start, long stop,
+                               int[] selectedCols, Filter filter) {
+        ArrayList<Get> gets = new ArrayList<Get>((int) (stop - start));
+        for (long r = start; r < stop; ++r) {
+            Get get = new Get(rowKey(target.getRowId(r)));
+            for (int col : selectedCols) {
+                get.addColumn(HaloAdmin.PRIMARY_FAMILY, colspec.get(col));
+            }
+            if (filter != null) {
+                get.setFilter(filter);
             }
+            gets.add(get);
+        }
+        return gets;
+    }
 
-            ColumnProperty prop = tableProperty.getColumnProperty(i);
-            primaryPut.add(HaloAdmin.PRIMARY_FAMILY, colspec.get(i), value);
-            if (prop.isIndex()) {
-                /**
-                 * Update index record
-                 * RowKey = value + filled_zeros + value_len(4Byte) + rowid(8Byte)
-                 */
-                ByteBuffer buffer = ByteBuffer.allocate(prop.getMaxLength() + 12);
-                buffer.put(value);
-                buffer.position(prop.getMaxLength());
-                buffer.putInt(value.length).put(rowid);
-                Put put = new Put(buffer.array());
-                put.add(HaloAdmin.INDEX_FAMILY, Bytes.NULL, Bytes.NULL);
-                indexTables[i].put(put);
+    /**
+     * Sends the Gets to the primary table as getFetchMode() tells.
+     * @return Values of each row, null for the missing rows.
+     */
+    private byte[][][] queryValues(List<Get> gets, int[] selectedCols) throws IOException {
+        byte[][][] rows = new byte[gets.size()][][];
+        if (fetchMode == FETCH_FAN_OUT) {
+            ArrayList<Callable<Result>> tasks = new ArrayList<Callable<Result>>(gets.size());
+            for (final Get get : gets) {
+                tasks.add(new Callable<Result>() {
+                    @Override
+                    public Result call() throws Exception {
+                        return getRow(get);
+                    }
+                });
             }
+            List<Result> results = FanOut.invokeAll(tasks, fanOutLimit);
+            for (int r = 0; r < rows.length; ++r) {
+                rows[r] = valuesOf(results.get(r), selectedCols);
+            }
+            return rows;
         }
 
-        primaryTable.put(primaryPut);
+        HTableInterface table = handlePool.acquire(primaryTableName);
+        try {
+            if (fetchMode == FETCH_SERIAL) {
+                for (int r = 0; r < rows.length; ++r) {
+                    rows[r] = valuesOf(table.get(gets.get(r)), selectedCols);
+                }
+            } else {
+                Result[] results = table.get(gets);
+                for (int r = 0; r < rows.length; ++r) {
+                    rows[r] = valuesOf(results[r], selectedCols);
+                }
+            }
+        } finally {
+            handlePool.release(primaryTableName, table);
+        }
+        return rows;
     }
 
-    private byte[][] queryValues(byte[] row, int[] selectedCols) throws IOException {
-        int columns = selectedCols.length;
-        Get get = new Get(row);
-        for (int i = 0; i < columns; ++i) {
-            get.addColumn(HaloAdmin.PRIMARY_FAMILY, colspec.get(selectedCols[i]));
+    private Result getRow(Get get) throws IOException {
+        HTableInterface table = handlePool.acquire(primaryTableName);
+        try {
+            return table.get(get);
+        } finally {
+            handlePool.release(primaryTableName, table);
         }
+    }
 
-        Result result = primaryTable.get(get);
-        if (!result.isEmpty()) {
-            byte[][] values = new byte[columns][];
-            for (int i = 0; i < columns; ++i) {
-                values[i] = getColumnValue(result, selectedCols[i]);
-            }
-            return values;
+    /* Gets the selected values of a fetched row, null for a missing row. */
+    private byte[][] valuesOf(Result result, int[] selectedCols) {
+        if (result == null || result.isEmpty()) {
+            return null;
         }
-        return null;
+        byte[][] values = new byte[selectedCols.length][];
+        for (int i = 0; i < selectedCols.length; ++i) {
+            values[i] = getColumnValue(result, selectedCols[i]);
+        }
+        return values;
     }
 
-    public void close() {
+    private Callable<byte[][][]> fetchTask(final List<Get> gets, final int[] selectedCols) {
+        return new Callable<byte[][][]>() {
+            @Override
+            public byte[][][] call() throws Exception {
+                return queryValues(gets, selectedCols);
+            }
+        };
+    }
+
+    static <T> T waitFor(Future<T> future) throws IOException {
         try {
-            primaryTable.close();
-        } catch (Exception e) {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
         }
-        for (HTable t : indexTables) {
-            if (t != null) {
-                try {
-                    t.close();
-                } catch (Exception e) {
+    }
+
+    /* Gets the executor that runs the batches, creates it on first use. */
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "halo-" + tableProperty.getName());
+                    t.setDaemon(true);
+                    return t;
                 }
+            });
+        }
+        return executor;
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
             }
         }
+        if (ownsHandlePool) {
+            handlePool.close();
+        }
+    }
+
+    /**
+     * Gets counters of the table handles used by this table. Handles of a
+     * table opened by a session are counted for the whole session.
+     */
+    public HandleMetrics getHandleMetrics() {
+        return handlePool.getMetrics();
     }
 
     public TableProperty getTableProperty() {
         return tableProperty;
     }
 
+    /* Gets the maximum number of rows sent to HBase in one batch. */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public HaloTable setBatchSize(int batchSize) {
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        return this;
+    }
+
+    /* Gets the number of rows fetched with one multi-Get. */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public HaloTable setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize > 0 ? fetchSize : DEFAULT_FETCH_SIZE;
+        return this;
+    }
+
+    /* Gets the maximum number of batches that may be run at the same time. */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the maximum number of batches that may be run at the same time.
+     * Takes effect before the first parallel operation on this table.
+     */
+    public HaloTable setParallelism(int parallelism) {
+        this.parallelism = parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+        return this;
+    }
+
+    /* Gets how rows are read by select(), query(), update() and delete(). */
+    public int getFetchMode() {
+        return fetchMode;
+    }
+
+    /**
+     * Sets how rows are read: FETCH_BATCHED (the default) sends a
+     * multi-Get of getFetchSize() rows, FETCH_SERIAL sends one Get after
+     * another, FETCH_FAN_OUT sends one Get per row at the same time, up to
+     * getFanOutLimit() for this table and FanOut.getProcessLimit() for the
+     * process. Rows are returned in order in every mode.
+     */
+    public HaloTable setFetchMode(int fetchMode) {
+        this.fetchMode = fetchMode;
+        return this;
+    }
+
+    /* Gets the maximum number of Gets this table has in flight in FETCH_FAN_OUT mode. */
+    public int getFanOutLimit() {
+        return fanOutLimit.get();
+    }
+
+    public HaloTable setFanOutLimit(int limit) {
+        fanOutLimit.set(limit > 0 ? limit : FanOut.DEFAULT_TABLE_LIMIT);
+        return this;
+    }
+
+    /**
+     * Scans the index table for rows within the segments of columnScans.
+     * Segments are scanned at the same time on the table executor, each
+     * with its own index table handle. Segments are disjoint and ordered,
+     * so the per-segment results are concatenated in segment order, which
+     * is the same order a sequential scan yields.
+     */
     public RowSet scan(ColumnScans columnScans) throws IOException {
-        if (columnScans.getColumn() >= tableProperty.getNumberOfColumns()) {
-            throw new IOException("Column #" + columnScans.getColumn()
+        final int column = columnScans.getColumn();
+        if (column >= tableProperty.getNumberOfColumns()) {
+            throw new IOException("Column #" + column
                     + " out of range, table(" + tableProperty.getName() + ")");
         }
 
-        HTable indexTable = indexTables[columnScans.getColumn()];
+        final String tableName = indexTableNames[column];
+        if (tableName == null) {
+            throw new IOException("Column " + tableProperty.getColumnProperty(column).getLabel()
+                    + " is not indexed");
+        }
+
+        List<ColumnScans.Segment> segments = columnScans.getSegments();
+        if (segments.size() == 1) {
+            HTableInterface table = handlePool.acquire(tableName);
+            try {
+                return scanIndex(table, segments.get(0));
+            } finally {
+                handlePool.release(tableName, table);
+            }
+        }
+
+        ArrayList<Future<RowSet>> pending = new ArrayList<Future<RowSet>>(segments.size());
+        try {
+            for (final ColumnScans.Segment segment : segments) {
+                pending.add(getExecutor().submit(new Callable<RowSet>() {
+                    @Override
+                    public RowSet call() throws Exception {
+                        HTableInterface table = handlePool.acquire(tableName);
+                        try {
+                            return unlessCancelled(scanIndex(table, segment));
+                        } finally {
+                            handlePool.release(tableName, table);
+                        }
+                    }
+                }));
+            }
+            return concat(pending);
+        } finally {
+            cancelScans(pending);
+        }
+    }
+
+    private static RowSet scanIndex(HTableInterface indexTable, ColumnScans.Segment segment) throws IOException {
         RowSet rows = new RowSet();
-        for (ColumnScans.Segment segment : columnScans.getSegments()) {
-            ResultScanner scanner = indexTable.getScanner(segment.toScan());
+        boolean done = false;
+        ResultScanner scanner = indexTable.getScanner(segment.toScan());
+        try {
             for (Result result = scanner.next(); result != null; result = scanner.next()) {
-                rows.add(RowId.fromIndexRow(result.getRow()));
+                rows.add(RowId.idOfIndexRow(result.getRow()));
+            }
+            done = true;
+        } finally {
+            scanner.close();
+            if (!done) {
+                rows.release();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Concatenates the rows of parallel scans in the order of the scans,
+     * the rows of each scan are released once they are copied.
+     */
+    private static RowSet concat(List<Future<RowSet>> pending) throws IOException {
+        RowSet rows = new RowSet();
+        boolean done = false;
+        try {
+            for (Future<RowSet> f : pending) {
+                RowSet scanRows = waitFor(f);
+                try {
+                    rows.addAll(scanRows);
+                } finally {
+                    scanRows.release();
+                }
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                rows.release();
             }
         }
         return rows;
     }
 
+    /**
+     * Cancels the parallel scans that are still running and releases the
+     * rows of those that have finished, which nobody takes after a failure.
+     */
+    private static void cancelScans(List<Future<RowSet>> pending) {
+        for (Future<RowSet> f : pending) {
+            if (f.cancel(true) || f.isCancelled()) {
+                continue;
+            }
+            try {
+                f.get().release();
+            } catch (Exception e) {
+                /* A failed scan has released its rows */
+            }
+        }
+    }
+
+    /**
+     * Hands back the rows of a parallel scan, or releases them if the scan
+     * was cancelled while it ran, as a cancelled future drops its result.
+     */
+    private static RowSet unlessCancelled(RowSet rows) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            rows.release();
+            throw new InterruptedIOException("Scan cancelled");
+        }
+        return rows;
+    }
+
+    /**
+     * Reads the selected columns of the rows within the segments of
+     * columnScans from the index table alone. The index must cover the
+     * selected columns, see TableProperty.isCovering(). Rows are returned
+     * in the order of the index.
+     */
+    public QueryResult selectFromIndex(int[] selectedCols, ColumnScans columnScans) throws IOException {
+        int column = columnScans.getColumn();
+        if (!tableProperty.isCovering(column, selectedCols)) {
+            throw new IOException("Index of column " + tableProperty.getColumnProperty(column).getLabel()
+                    + " doesn't cover the selected columns");
+        }
+
+        /* Values of the key columns are decoded from the row keys */
+        int[] key = indexKeyColumns[column];
+        int[] keyParts = new int[selectedCols.length];
+        boolean keyOnly = true;
+        for (int i = 0; i < selectedCols.length; ++i) {
+            keyParts[i] = -1;
+            for (int k = 0; k < key.length && keyParts[i] == -1; ++k) {
+                if (key[k] == selectedCols[i]) {
+                    keyParts[i] = k;
+                }
+            }
+            keyOnly &= keyParts[i] != -1;
+        }
+
+        QueryResult queryResult = new QueryResult(selectedCols.length);
+        HTableInterface table = handlePool.acquire(indexTableNames[column]);
+        try {
+            for (ColumnScans.Segment segment : columnScans.getSegments()) {
+                Scan scan = segment.toScan();
+                if (keyOnly) {
+                    scan.setFilter(keyOnlyFilter());
+                }
+                ResultScanner scanner = table.getScanner(scan);
+                try {
+                    for (Result result = scanner.next(); result != null; result = scanner.next()) {
+                        byte[][] row = new byte[selectedCols.length][];
+                        for (int i = 0; i < selectedCols.length; ++i) {
+                            row[i] = keyParts[i] != -1 ?
+                                    IndexKey.valueOf(indexKeys[column], result.getRow(), keyParts[i]) :
+                                    result.getValue(HaloAdmin.INDEX_FAMILY, colspec.get(selectedCols[i]));
+                        }
+                        decodeRow(selectedCols, row);
+                        queryResult.add(row);
+                    }
+                } finally {
+                    scanner.close();
+                }
+            }
+        } finally {
+            handlePool.release(indexTableNames[column], table);
+        }
+        return queryResult;
+    }
+
+    /**
+     * Counts the rows within the segments of columnScans by a key-only
+     * scan of the index table.
+     */
+    public long count(ColumnScans columnScans) throws IOException {
+        final long[] count = new long[1];
+        scanIndexKeys(columnScans, new IndexKeyVisitor() {
+            @Override
+            public void visit(byte[] row) {
+                ++count[0];
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Reads the distinct values of an indexed column within the segments of
+     * columnScans by a key-only scan of the index table. Rows without a
+     * value of the column are left out.
+     * @return Values in ascending order, one column per row.
+     */
+    public QueryResult selectDistinct(ColumnScans columnScans) throws IOException {
+        columnScans = withValues(columnScans);
+        final int column = columnScans.getColumn();
+        final ColumnProperty prop = tableProperty.getColumnProperty(column);
+        final QueryResult queryResult = new QueryResult(1);
+        scanIndexKeys(columnScans, new IndexKeyVisitor() {
+            byte[] last = null;
+
+            @Override
+            public void visit(byte[] row) {
+                byte[] value = IndexKey.valueOf(prop, row);
+                if (last == null || !Arrays.equals(last, value)) {
+                    queryResult.add(new byte[][]{tableProperty.fromStoredValue(column, value)});
+                    last = value;
+                }
+            }
+        });
+        return queryResult;
+    }
+
+    /**
+     * Counts the distinct values of an indexed column within the segments
+     * of columnScans by a key-only scan of the index table, see
+     * selectDistinct().
+     */
+    public long countDistinct(ColumnScans columnScans) throws IOException {
+        columnScans = withValues(columnScans);
+        final ColumnProperty prop = tableProperty.getColumnProperty(columnScans.getColumn());
+        final long[] count = new long[1];
+        scanIndexKeys(columnScans, new IndexKeyVisitor() {
+            byte[] last = null;
+
+            @Override
+            public void visit(byte[] row) {
+                byte[] value = IndexKey.valueOf(prop, row);
+                if (last == null || !Arrays.equals(last, value)) {
+                    ++count[0];
+                    last = value;
+                }
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Folds the values of an indexed column within the segments of
+     * columnScans into an aggregate by a key-only scan of the index table.
+     * MIN reads the first key in range only, MAX reads keys of the last
+     * segment that has any, as keys of FORMAT_ORDERED tables sort by value.
+     * Records of rows without a value of the column are left out.
+     */
+    public void aggregate(final Aggregate aggregate, ColumnScans columnScans) throws IOException {
+        columnScans = withValues(columnScans);
+        final int column = columnScans.getColumn();
+        final ColumnProperty prop = tableProperty.getColumnProperty(column);
+        int function = aggregate.getFunction();
+        if (function == Aggregate.COUNT) {
+            aggregate.addCount(count(columnScans));
+            return;
+        }
+
+        if ((function == Aggregate.MIN || function == Aggregate.MAX)
+                && tableProperty.getFormatVersion() >= TableProperty.FORMAT_ORDERED) {
+            byte[] row = boundIndexKey(columnScans, function == Aggregate.MAX);
+            if (row != null) {
+                aggregate.add(tableProperty.fromStoredValue(column, IndexKey.valueOf(prop, row)));
+            }
+            return;
+        }
+
+        scanIndexKeys(columnScans, new IndexKeyVisitor() {
+            @Override
+            public void visit(byte[] row) {
+                aggregate.add(tableProperty.fromStoredValue(column, IndexKey.valueOf(prop, row)));
+            }
+        });
+    }
+
+    /**
+     * Leaves out the index records of rows that have no value of the
+     * column, whose keys hold an empty value and sort below all others.
+     */
+    private ColumnScans withValues(ColumnScans columnScans) {
+        int column = columnScans.getColumn();
+        if (indexKeys[column] == null) {
+            return columnScans;
+        }
+
+        ColumnScans.Segment values = new ColumnScans.Segment(
+                IndexKey.upperKey(indexKeys[column], new byte[][]{Bytes.NULL}), null);
+        ColumnScans result = new ColumnScans(column);
+        for (ColumnScans.Segment segment : columnScans.getSegments()) {
+            ColumnScans.Segment s = new ColumnScans.Segment(segment.getStart(), segment.getStop()).intersect(values);
+            if (!s.isEmpty()) {
+                /* Segments stay disjoint and ordered */
+                result.getSegments().add(s);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counts all rows of the table. The full range of a ready index is
+     * counted by a key-only scan, every row has a record in it, tables
+     * without one are counted by a scan of the first key of each row.
+     * Either way no row id is collected.
+     */
+    public long countRows() throws IOException {
+        TableProperty tableProperty = this.tableProperty;
+        for (int i = 0; i < tableProperty.getNumberOfColumns(); ++i) {
+            if (tableProperty.getColumnProperty(i).isIndexReady()) {
+                return count(new ColumnScans(i).add(null, null));
+            }
+        }
+
+        Scan scan = new Scan();
+        scan.setCaching(1000);
+        scan.setCacheBlocks(false);
+        scan.setFilter(keyOnlyFilter());
+        long count = 0;
+        HTableInterface table = handlePool.acquire(primaryTableName);
+        try {
+            ResultScanner scanner = table.getScanner(scan);
+            try {
+                for (Result result = scanner.next(); result != null; result = scanner.next()) {
+                    ++count;
+                }
+            } finally {
+                scanner.close();
+            }
+        } finally {
+            handlePool.release(primaryTableName, table);
+        }
+        return count;
+    }
+
+    /**
+     * Gets the first or the last index key within the segments of
+     * columnScans, null if there is none. HBase 0.96 has no reversed
+     * scans, the last key is found by a key-only scan of the segments
+     * from the last one on, which stops at the first segment with a key.
+     */
+    private byte[] boundIndexKey(ColumnScans columnScans, boolean last) throws IOException {
+        String tableName = indexTableNames[columnScans.getColumn()];
+        if (tableName == null) {
+            throw new IOException("Column " + tableProperty.getColumnProperty(columnScans.getColumn()).getLabel()
+                    + " is not indexed");
+        }
+        List<ColumnScans.Segment> segments = new ArrayList<ColumnScans.Segment>(columnScans.getSegments());
+        if (last) {
+            Collections.reverse(segments);
+        }
+
+        HTableInterface table = handlePool.acquire(tableName);
+        try {
+            for (ColumnScans.Segment segment : segments) {
+                Scan scan = segment.toScan();
+                scan.setCaching(last ? 1000 : 1);
+                scan.setFilter(keyOnlyFilter());
+                byte[] bound = null;
+                ResultScanner scanner = table.getScanner(scan);
+                try {
+                    for (Result result = scanner.next(); result != null; result = scanner.next()) {
+                        bound = result.getRow();
+                        if (!last) {
+                            break;
+                        }
+                    }
+                } finally {
+                    scanner.close();
+                }
+                if (bound != null) {
+                    return bound;
+                }
+            }
+        } finally {
+            handlePool.release(tableName, table);
+        }
+        return null;
+    }
+
+    /**
+     * Folds the values of a column in the rows of the primary table that
+     * pass a filter into an aggregate, in one scan that reads only the
+     * column and the columns the filter looks at.
+     * @param filter Filter on the rows, null for all rows.
+     * @param filterCols Columns that the filter looks at.
+     */
+    public void aggregatePrimary(Aggregate aggregate, int column, Filter filter, int[] filterCols) throws IOException {
+        Scan scan = new Scan();
+        scan.setCaching(1000);
+        scan.setCacheBlocks(false);
+        scan.addColumn(HaloAdmin.PRIMARY_FAMILY, colspec.get(column));
+        if (filter != null) {
+            for (int col : filterCols) {
+                if (col != column) {
+                    scan.addColumn(HaloAdmin.PRIMARY_FAMILY, colspec.get(col));
+                }
+            }
+            scan.setFilter(filter);
+        }
+
+        HTableInterface table = handlePool.acquire(primaryTableName);
+        try {
+            ResultScanner scanner = table.getScanner(scan);
+            try {
+                for (Result result = scanner.next(); result != null; result = scanner.next()) {
+                    byte[] stored = getColumnValue(result, column);
+                    if (stored != null) {
+                        aggregate.add(tableProperty.fromStoredValue(column, stored));
+                    }
+                }
+            } finally {
+                scanner.close();
+            }
+        } finally {
+            handlePool.release(primaryTableName, table);
+        }
+    }
+
+    /**
+     * Folds the values of a column in the target rows into an aggregate.
+     * Values are read through a cursor, see query(), so only the batches
+     * in flight are held in memory.
+     */
+    public void aggregate(Aggregate aggregate, int column, RowSet target) throws IOException {
+        QueryCursor cursor = query(new int[]{column}, target);
+        try {
+            while (cursor.next()) {
+                aggregate.add(cursor.getRow()[0]);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Scans the segments in order with only the first key of each index row
+     * sent back. Segments are disjoint and ordered, so keys are visited in
+     * ascending order.
+     */
+    private void scanIndexKeys(ColumnScans columnScans, IndexKeyVisitor visitor) throws IOException {
+        String tableName = indexTableNames[columnScans.getColumn()];
+        if (tableName == null) {
+            throw new IOException("Column " + tableProperty.getColumnProperty(columnScans.getColumn()).getLabel()
+                    + " is not indexed");
+        }
+
+        HTableInterface table = handlePool.acquire(tableName);
+        try {
+            for (ColumnScans.Segment segment : columnScans.getSegments()) {
+                Scan scan = segment.toScan();
+                scan.setCaching(1000);
+                scan.setFilter(keyOnlyFilter());
+                ResultScanner scanner = table.getScanner(scan);
+                try {
+                    for (Result result = scanner.next(); result != null; result = scanner.next()) {
+                        visitor.visit(result.getRow());
+                    }
+                } finally {
+                    scanner.close();
+                }
+            }
+        } finally {
+            handlePool.release(tableName, table);
+        }
+    }
+
+    /* Sends back only the row key, as the key of the first cell with no value. */
+    private static Filter keyOnlyFilter() {
+        FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+        filters.addFilter(new FirstKeyOnlyFilter());
+        filters.addFilter(new KeyOnlyFilter());
+        return filters;
+    }
+
+    /**
+     * Scans the primary table for the row ids of the rows a Scan returns.
+     * Start and stop rows of the scan are taken as row keys of row ids.
+     * Buckets of a salted table are scanned at the same time over the same
+     * row id range, the rows are returned bucket by bucket.
+     */
     public RowSet scanPrimary(Scan scan) throws IOException {
+        int buckets = tableProperty.getSaltBuckets();
+        if (buckets == TableProperty.NO_SALT) {
+            return scanBucket(scan);
+        }
+
+        ArrayList<Future<RowSet>> pending = new ArrayList<Future<RowSet>>(buckets);
+        try {
+            for (int b = 0; b < buckets; ++b) {
+                byte[] salt = {(byte) b};
+                final Scan bucketScan = new Scan(scan);
+                bucketScan.setStartRow(Bytes.concat(salt, scan.getStartRow()));
+                if (scan.getStopRow().length != 0) {
+                    bucketScan.setStopRow(Bytes.concat(salt, scan.getStopRow()));
+                } else {
+                    bucketScan.setStopRow(b + 1 < buckets ? new byte[]{(byte) (b + 1)} : Bytes.NULL);
+                }
+                pending.add(getExecutor().submit(new Callable<RowSet>() {
+                    @Override
+                    public RowSet call() throws Exception {
+                        return unlessCancelled(scanBucket(bucketScan));
+                    }
+                }));
+            }
+            return concat(pending);
+        } finally {
+            cancelScans(pending);
+        }
+    }
+
+    private RowSet scanBucket(Scan scan) throws IOException {
         RowSet rows = new RowSet();
-        ResultScanner scanner = primaryTable.getScanner(scan);
-        for (Result result = scanner.next(); result != null; result = scanner.next()) {
-            rows.add(result.getRow());
+        boolean done = false;
+        HTableInterface table = handlePool.acquire(primaryTableName);
+        try {
+            ResultScanner scanner = table.getScanner(scan);
+            try {
+                for (Result result = scanner.next(); result != null; result = scanner.next()) {
+                    rows.add(rowIdOf(result.getRow()));
+                }
+                done = true;
+            } finally {
+                scanner.close();
+            }
+        } finally {
+            handlePool.release(primaryTableName, table);
+            if (!done) {
+                rows.release();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Keeps the target rows that pass a filter. Rows are checked with
+     * multi-Gets of getFetchSize() rows that carry the filter, up to
+     * getParallelism() of which are run at the same time.
+     *
+     * @param filterCols Columns that the filter looks at.
+     * @return Rows that pass, in the order of target.
+     */
+    public RowSet filterRows(RowSet target, Filter filter, int[] filterCols) throws IOException {
+        RowSet rows = new RowSet();
+        long total = target.size();
+        long collected = 0;
+        boolean done = false;
+        LinkedList<Future<byte[][][]>> pending = new LinkedList<Future<byte[][][]>>();
+        try {
+            for (long r = 0; r < total; r += fetchSize) {
+                if (pending.size() >= parallelism) {
+                    collected = addMatches(rows, target, collected, waitFor(pending.removeFirst()));
+                }
+                pending.add(fetch(target, r, Math.min(total, r + fetchSize), filterCols, filter));
+            }
+            while (!pending.isEmpty()) {
+                collected = addMatches(rows, target, collected, waitFor(pending.removeFirst()));
+            }
+            done = true;
+        } finally {
+            for (Future<byte[][][]> f : pending) {
+                f.cancel(true);
+            }
+            if (!done) {
+                rows.release();
+            }
         }
         return rows;
     }
 
+    private static long addMatches(RowSet rows, RowSet target, long start, byte[][][] values) {
+        for (int i = 0; i < values.length; ++i) {
+            if (values[i] != null) {
+                rows.add(target.getRowId(start + i));
+            }
+        }
+        return start + values.length;
+    }
+
     public int findColumn(String columnLabel) {
         return tableProperty.findColumn(columnLabel);
     }
 
+    /**
+     * Gathers statistics of an indexed column by sampling its index table.
+     * @param sampleRate Fraction of index rows to read, 1 to read all.
+     */
+    public ColumnStatistics analyzeColumn(int column, float sampleRate) throws IOException {
+        ColumnProperty prop = tableProperty.getColumnProperty(column);
+        if (!prop.isIndex()) {
+            throw new IOException("Column " + prop.getLabel() + " is not indexed");
+        }
+
+        Scan scan = new Scan();
+        scan.setCaching(1000);
+        scan.setCacheBlocks(false);
+        FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+        filters.addFilter(new KeyOnlyFilter());
+        if (sampleRate > 0 && sampleRate < 1) {
+            filters.addFilter(new RandomRowFilter(sampleRate));
+        }
+        scan.setFilter(filters);
+
+        HTableInterface table = handlePool.acquire(indexTableNames[column]);
+        try {
+            ResultScanner scanner = table.getScanner(scan);
+            try {
+                return ColumnStatistics.collect(scanner, prop, sampleRate, tableProperty.getRowIdUpperBound());
+            } finally {
+                scanner.close();
+            }
+        } finally {
+            handlePool.release(indexTableNames[column], table);
+        }
+    }
+
+    /* Gets the qualifier of a column in the primary table. */
+    public static byte[] getColumnQualifier(int column) {
+        return colspec.get(column);
+    }
+
     private byte[] getColumnValue(Result result, int column) {
         return result.getValue(HaloAdmin.PRIMARY_FAMILY, colspec.get(column));
     }
@@ -244,11 +1551,20 @@ public class HaloTable {
      * @throws IOException
      */
     private long findRowIdUpperBound() throws IOException {
+        HTableInterface primaryTable = handlePool.acquire(primaryTableName);
+        try {
+            return findRowIdUpperBound(primaryTable);
+        } finally {
+            handlePool.release(primaryTableName, primaryTable);
+        }
+    }
+
+    private static long findRowIdUpperBound(HTableInterface primaryTable) throws IOException {
         long lower = 0;
         long upper = RowId.UPPER_ID;
         long probe = upper / 2;
         while (upper - lower > 1) {
-            if (rowExists(probe)) {
+            if (rowExists(primaryTable, probe)) {
                 lower = probe;
                 /**
                  * NEVER write code like:
@@ -265,8 +1581,15 @@ public class HaloTable {
         return upper;
     }
 
-    private boolean rowExists(long startRowId) throws IOException {
+    private static boolean rowExists(HTableInterface primaryTable, long startRowId) throws IOException {
         Scan scan = new Scan(Bytes.toBytes(startRowId));
-        return primaryTable.getScanner(scan).next() != null;
+        scan.setCaching(1);
+        scan.setFilter(new FirstKeyOnlyFilter());
+        ResultScanner scanner = primaryTable.getScanner(scan);
+        try {
+            return scanner.next() != null;
+        } finally {
+            scanner.close();
+        }
     }
 }
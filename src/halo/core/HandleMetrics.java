@@ -0,0 +1,44 @@
+package halo.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the table handles lent by a pool.
+ * A handle is opened when no idle handle of the table is left, the rest
+ * of the acquisitions reuse an idle one.
+ */
+public class HandleMetrics {
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong openNanos = new AtomicLong();
+
+    /* Gets the number of handles borrowed from the pool. */
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    /* Gets the number of handles opened by the pool. */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /* Gets the total time spent opening handles, in nanoseconds. */
+    public long getOpenNanos() {
+        return openNanos.get();
+    }
+
+    void recordAcquire() {
+        acquired.incrementAndGet();
+    }
+
+    void recordOpen(long nanos) {
+        opened.incrementAndGet();
+        openNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("acquired=%d, opened=%d, openTime=%.3fms",
+                getAcquired(), getOpened(), getOpenNanos() / 1e6);
+    }
+}
@@ -0,0 +1,342 @@
+package halo.core;
+
+import halo.common.Bytes;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.*;
+
+/**
+ * Fills the index of a column from the rows already in the primary table,
+ * while writers keep maintaining the index for the rows they write.
+ *
+ * The primary table is split into key ranges, one per region, which are
+ * scanned at the same time. Index records are written in batches with the
+ * timestamp of the primary cells they are made of, so the record of a value
+ * that a writer has changed or deleted in the meantime stays hidden behind
+ * the writer's delete marker instead of coming back.
+ *
+ * Where each range has got to is stored in the metadata row of the table
+ * after every batch, an interrupted build resumes from there.
+ *
+ * Writes of tables that had not reloaded the index yet may land in a range
+ * after it was indexed, catchUp() indexes the rows written since a time
+ * once more.
+ */
+class IndexBuilder {
+    /**
+     * A key range [next, stop) of the primary table that is left to index.
+     * A range is identified by the key it started at.
+     */
+    static class Range {
+        final byte[] start;
+        final byte[] stop;
+        byte[] next;
+
+        Range(byte[] start, byte[] stop, byte[] next) {
+            this.start = start;
+            this.stop = stop;
+            this.next = next;
+        }
+    }
+
+    private HaloTable table;
+    private int column;
+    private TableHandlePool handlePool;
+    private Throttle throttle;
+    private byte[] metadataRow;
+    private int[] readCols;
+
+    IndexBuilder(HaloTable table, int column, TableHandlePool handlePool, Throttle throttle) {
+        TableProperty tableProperty = table.getTableProperty();
+        this.table = table;
+        this.column = column;
+        this.handlePool = handlePool;
+        this.throttle = throttle;
+        this.metadataRow = tableProperty.getName().getBytes();
+
+        int[] key = tableProperty.getIndexKeyColumns(column);
+        int[] included = tableProperty.getIncludedColumns(column);
+        readCols = new int[key.length + included.length];
+        System.arraycopy(key, 0, readCols, 0, key.length);
+        System.arraycopy(included, 0, readCols, key.length, included.length);
+    }
+
+    /* Makes the ranges of a primary table that has not been indexed at all. */
+    static List<Range> rangesOf(byte[][] startKeys, byte[][] endKeys) {
+        ArrayList<Range> ranges = new ArrayList<Range>(startKeys.length);
+        for (int i = 0; i < startKeys.length; ++i) {
+            ranges.add(new Range(startKeys[i], endKeys[i], startKeys[i]));
+        }
+        return ranges;
+    }
+
+    /* Adds the progress of all ranges of a column to a Put of the metadata row. */
+    static void putProgress(Put put, int column, List<Range> ranges) {
+        for (Range range : ranges) {
+            put.add(HaloAdmin.METADATA_FAMILY, progressQualifier(column, range.start), encode(range));
+        }
+    }
+
+    /* Reads the ranges left to index from the metadata row of a table. */
+    static List<Range> readProgress(Result result, int column) {
+        ArrayList<Range> ranges = new ArrayList<Range>();
+        NavigableMap<byte[], byte[]> cells = result.getFamilyMap(HaloAdmin.METADATA_FAMILY);
+        if (cells == null) {
+            return ranges;
+        }
+
+        byte[] prefix = HaloAdmin.backfillspec.get(column);
+        for (Map.Entry<byte[], byte[]> cell : cells.tailMap(prefix, true).entrySet()) {
+            byte[] qualifier = cell.getKey();
+            if (qualifier.length < prefix.length
+                    || Bytes.compare(qualifier, 0, prefix.length, prefix, 0, prefix.length) != 0) {
+                break;
+            }
+            ByteBuffer value = ByteBuffer.wrap(cell.getValue());
+            byte[] stop = new byte[value.getInt()];
+            value.get(stop);
+            byte[] next = new byte[value.remaining()];
+            value.get(next);
+            ranges.add(new Range(Bytes.range(qualifier, prefix.length, qualifier.length - prefix.length),
+                    stop, next));
+        }
+        return ranges;
+    }
+
+    /**
+     * Indexes the rows of all ranges, up to parallelism ranges at a time.
+     * @return Number of index records written.
+     */
+    long build(List<Range> ranges, int parallelism) throws IOException {
+        return run(ranges, parallelism, 0);
+    }
+
+    /**
+     * Indexes the rows of all ranges that have a key or included column
+     * written at or after a time, up to parallelism ranges at a time.
+     * Progress is not recorded, an interrupted catch-up starts over.
+     * @param since Time in milliseconds, as of the cell timestamps.
+     * @return Number of index records written.
+     */
+    long catchUp(List<Range> ranges, long since, int parallelism) throws IOException {
+        return run(ranges, parallelism, Math.max(since, 1));
+    }
+
+    /* Runs build or catch-up scans over ranges, since == 0 for a build. */
+    private long run(List<Range> ranges, int parallelism, final long since) throws IOException {
+        if (ranges.isEmpty()) {
+            return 0;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(parallelism, ranges.size())), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "halo-backfill-" + table.getTableProperty().getName());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        ArrayList<Future<Long>> pending = new ArrayList<Future<Long>>(ranges.size());
+        try {
+            for (final Range range : ranges) {
+                pending.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return since == 0 ? buildRange(range) : catchUpRange(range, since);
+                    }
+                }));
+            }
+
+            long written = 0;
+            for (Future<Long> f : pending) {
+                written += HaloTable.waitFor(f);
+            }
+            return written;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long buildRange(Range range) throws IOException {
+        String primaryTableName = table.getTableProperty().getPrimaryTableName();
+        String indexTableName = table.getTableProperty().getIndexTableName(column);
+        int batchSize = table.getBatchSize();
+
+        Scan scan = new Scan(range.next, range.stop);
+        scan.setCaching(batchSize);
+        scan.setCacheBlocks(false);
+        for (int col : readCols) {
+            scan.addColumn(HaloAdmin.PRIMARY_FAMILY, HaloTable.getColumnQualifier(col));
+        }
+
+        long written = 0;
+        byte[][] stored = new byte[table.getTableProperty().getNumberOfColumns()][];
+        ArrayList<Put> puts = new ArrayList<Put>(batchSize);
+        HTableInterface primaryTable = handlePool.acquire(primaryTableName);
+        try {
+            ResultScanner scanner = primaryTable.getScanner(scan);
+            try {
+                byte[] last = null;
+                for (Result result = scanner.next(); result != null; result = scanner.next()) {
+                    last = result.getRow();
+                    Put put = makeIndexPut(result, stored);
+                    if (put != null) {
+                        puts.add(put);
+                    }
+                    if (puts.size() >= batchSize) {
+                        written += flush(indexTableName, puts, range, Bytes.concat(last, Bytes.ZERO));
+                    }
+                }
+                written += flush(indexTableName, puts, range, null);
+            } finally {
+                scanner.close();
+            }
+        } finally {
+            handlePool.release(primaryTableName, primaryTable);
+        }
+        return written;
+    }
+
+    private long catchUpRange(Range range, long since) throws IOException {
+        String primaryTableName = table.getTableProperty().getPrimaryTableName();
+        String indexTableName = table.getTableProperty().getIndexTableName(column);
+        int batchSize = table.getBatchSize();
+
+        /* Finds the rows, then reads all of their key and included columns */
+        Scan scan = new Scan(range.start, range.stop);
+        scan.setCaching(batchSize);
+        scan.setCacheBlocks(false);
+        scan.setTimeRange(since, Long.MAX_VALUE);
+        for (int col : readCols) {
+            scan.addColumn(HaloAdmin.PRIMARY_FAMILY, HaloTable.getColumnQualifier(col));
+        }
+        scan.setFilter(new FirstKeyOnlyFilter());
+
+        long written = 0;
+        byte[][] stored = new byte[table.getTableProperty().getNumberOfColumns()][];
+        ArrayList<Get> gets = new ArrayList<Get>(batchSize);
+        ArrayList<Put> puts = new ArrayList<Put>(batchSize);
+        HTableInterface primaryTable = handlePool.acquire(primaryTableName);
+        try {
+            ResultScanner scanner = primaryTable.getScanner(scan);
+            try {
+                for (Result result = scanner.next(); ; result = scanner.next()) {
+                    if (result != null) {
+                        Get get = new Get(result.getRow());
+                        for (int col : readCols) {
+                            get.addColumn(HaloAdmin.PRIMARY_FAMILY, HaloTable.getColumnQualifier(col));
+                        }
+                        gets.add(get);
+                    }
+                    if (gets.size() >= batchSize || (result == null && !gets.isEmpty())) {
+                        for (Result row : primaryTable.get(gets)) {
+                            Put put = row.isEmpty() ? null : makeIndexPut(row, stored);
+                            if (put != null) {
+                                puts.add(put);
+                            }
+                        }
+                        gets.clear();
+                        written += writeIndex(indexTableName, puts);
+                    }
+                    if (result == null) {
+                        break;
+                    }
+                }
+            } finally {
+                scanner.close();
+            }
+        } finally {
+            handlePool.release(primaryTableName, primaryTable);
+        }
+        return written;
+    }
+
+    /**
+     * Makes the index record of a primary row, null if the row has no value
+     * of the indexed column.
+     */
+    private Put makeIndexPut(Result result, byte[][] stored) {
+        long timestamp = 0;
+        for (int col : readCols) {
+            byte[] qualifier = HaloTable.getColumnQualifier(col);
+            stored[col] = result.getValue(HaloAdmin.PRIMARY_FAMILY, qualifier);
+            Cell cell = result.getColumnLatestCell(HaloAdmin.PRIMARY_FAMILY, qualifier);
+            if (cell != null) {
+                timestamp = Math.max(timestamp, cell.getTimestamp());
+            }
+        }
+        if (stored[column] == null) {
+            return null;
+        }
+
+        Put put = new Put(table.indexKey(column, stored, RowId.valueOf(table.rowIdOf(result.getRow()))));
+        put.add(HaloAdmin.INDEX_FAMILY, Bytes.NULL, timestamp, Bytes.NULL);
+        for (int included : table.getTableProperty().getIncludedColumns(column)) {
+            if (stored[included] != null) {
+                put.add(HaloAdmin.INDEX_FAMILY, HaloTable.getColumnQualifier(included), timestamp, stored[included]);
+            }
+        }
+        return put;
+    }
+
+    /**
+     * Writes a batch of index records, then records where the range has
+     * got to, or removes the range once it is done.
+     * @param next Key the range continues at, null when the range is done.
+     */
+    private int flush(String indexTableName, ArrayList<Put> puts, Range range, byte[] next) throws IOException {
+        int written = writeIndex(indexTableName, puts);
+
+        HTableInterface metadataTable = handlePool.acquire(HaloAdmin.METADATA_TABLE);
+        try {
+            if (next != null) {
+                range.next = next;
+                Put put = new Put(metadataRow);
+                put.add(HaloAdmin.METADATA_FAMILY, progressQualifier(column, range.start), encode(range));
+                metadataTable.put(put);
+            } else {
+                Delete delete = new Delete(metadataRow);
+                delete.deleteColumns(HaloAdmin.METADATA_FAMILY, progressQualifier(column, range.start));
+                metadataTable.delete(delete);
+            }
+        } finally {
+            handlePool.release(HaloAdmin.METADATA_TABLE, metadataTable);
+        }
+        return written;
+    }
+
+    /* Writes a batch of index records at the rate of the throttle. */
+    private int writeIndex(String indexTableName, ArrayList<Put> puts) throws IOException {
+        int written = puts.size();
+        if (!puts.isEmpty()) {
+            throttle.acquire(written);
+            HTableInterface indexTable = handlePool.acquire(indexTableName);
+            try {
+                indexTable.put(puts);
+            } finally {
+                handlePool.release(indexTableName, indexTable);
+            }
+            puts.clear();
+        }
+        return written;
+    }
+
+    private static byte[] progressQualifier(int column, byte[] start) {
+        return Bytes.concat(HaloAdmin.backfillspec.get(column), start);
+    }
+
+    /* Progress = stop_len(4Byte) + stop + next */
+    private static byte[] encode(Range range) {
+        return ByteBuffer.allocate(4 + range.stop.length + range.next.length)
+                .putInt(range.stop.length).put(range.stop).put(range.next).array();
+    }
+}
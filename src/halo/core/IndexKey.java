@@ -0,0 +1,106 @@
+package halo.core;
+
+import halo.common.Bytes;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A tool class to help build and parse row keys of index tables.
+ *
+ * RowKey = value + filled_zeros + value_len(4Byte) + rowid(8Byte)
+ *
+ * Values are padded to the max length of the column, so keys of the
+ * same value differ by the row id only, and keys sort by value first.
+ *
+ * Keys of a composite index hold one padded value per key column, in the
+ * order of the key, ahead of the row id:
+ *
+ * RowKey = value1 + filled_zeros + value1_len + value2 + ... + rowid
+ *
+ * so keys sort by the first column, then by the second one, and so on.
+ */
+public class IndexKey {
+    /**
+     * Makes the part of a row key that precedes the row id.
+     * @param value Stored form of the value.
+     */
+    public static byte[] prefix(ColumnProperty prop, byte[] value) {
+        return prefix(new ColumnProperty[]{prop}, new byte[][]{value});
+    }
+
+    /**
+     * Makes the part of a composite row key made of the leading values.
+     * @param key Properties of the key columns, in the order of the key.
+     * @param values Stored form of the values of the first values.length
+     *               key columns.
+     */
+    public static byte[] prefix(ColumnProperty[] key, byte[][] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(partsLength(key, values.length));
+        for (int i = 0; i < values.length; ++i) {
+            int start = buffer.position();
+            buffer.put(values[i]);
+            buffer.position(start + key[i].getMaxLength());
+            buffer.putInt(values[i].length);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Makes the row key of an index record.
+     * @param value Stored form of the value.
+     * @param rowid Row key in the primary table.
+     */
+    public static byte[] valueOf(ColumnProperty prop, byte[] value, byte[] rowid) {
+        return Bytes.concat(prefix(prop, value), rowid);
+    }
+
+    /**
+     * Makes the row key of a composite index record.
+     * @param values Stored form of the values of all key columns.
+     */
+    public static byte[] valueOf(ColumnProperty[] key, byte[][] values, byte[] rowid) {
+        return Bytes.concat(prefix(key, values), rowid);
+    }
+
+    /* Gets the stored value of the first key column of an index record. */
+    public static byte[] valueOf(ColumnProperty prop, byte[] row) {
+        int length = ByteBuffer.wrap(row, prop.getMaxLength(), 4).getInt();
+        return Bytes.range(row, 0, length);
+    }
+
+    /* Gets the stored value of a key column of a composite index record. */
+    public static byte[] valueOf(ColumnProperty[] key, byte[] row, int part) {
+        int offset = partsLength(key, part);
+        int length = ByteBuffer.wrap(row, offset + key[part].getMaxLength(), 4).getInt();
+        return Bytes.range(row, offset, length);
+    }
+
+    /**
+     * Makes a row key below all keys of an index that start with the
+     * given leading values.
+     */
+    public static byte[] lowerKey(ColumnProperty[] key, byte[]... values) {
+        return Arrays.copyOf(prefix(key, values), partsLength(key, key.length) + 8);
+    }
+
+    /**
+     * Makes a row key above all keys of an index that start with the
+     * given leading values.
+     */
+    public static byte[] upperKey(ColumnProperty[] key, byte[]... values) {
+        byte[] prefix = prefix(key, values);
+        byte[] row = Arrays.copyOf(prefix, partsLength(key, key.length) + 8);
+        Arrays.fill(row, prefix.length, row.length, (byte) 0xff);
+        return row;
+    }
+
+    /* Gets the length of the first parts of a key. */
+    private static int partsLength(ColumnProperty[] key, int parts) {
+        int length = 0;
+        for (int i = 0; i < parts; ++i) {
+            length += key[i].getMaxLength() + 4;
+        }
+        return length;
+    }
+}
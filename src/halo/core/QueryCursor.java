@@ -0,0 +1,104 @@
+package halo.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Future;
+
+/**
+ * A forward-only cursor over the rows of a query.
+ * Rows are fetched lazily in batches, at most getPrefetch() batches are
+ * fetched ahead of the row being read, so the whole result never has to
+ * fit on the heap.
+ *
+ * Usage:
+ *   QueryCursor cursor = table.query(selectedCols, rows);
+ *   while (cursor.next()) {
+ *       byte[][] values = cursor.getRow();
+ *   }
+ *   cursor.close();
+ */
+public class QueryCursor implements Closeable {
+    private HaloTable table;
+    private RowSet target;
+    private int[] selectedCols;
+    private int prefetch;
+
+    /* Where the next batch to be fetched starts */
+    private long nextFetch;
+    private LinkedList<Future<byte[][][]>> pending;
+
+    private byte[][][] batch;
+    private int batchPos;
+    private byte[][] row;
+
+    QueryCursor(HaloTable table, int[] selectedCols, RowSet target, int prefetch) {
+        this.table = table;
+        this.target = target;
+        this.selectedCols = selectedCols;
+        this.prefetch = prefetch > 0 ? prefetch : 1;
+        this.nextFetch = 0;
+        this.pending = new LinkedList<Future<byte[][][]>>();
+    }
+
+    public int getNumberOfColumns() {
+        return selectedCols.length;
+    }
+
+    /* Gets the maximum number of batches fetched ahead. */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Moves the cursor to the next row.
+     * @return false if there are no more rows.
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            while (batch != null && batchPos < batch.length) {
+                row = batch[batchPos++];
+                if (row != null) {
+                    table.decodeRow(selectedCols, row);
+                    return true;
+                }
+            }
+
+            fill();
+            if (pending.isEmpty()) {
+                batch = null;
+                row = null;
+                return false;
+            }
+            batch = HaloTable.waitFor(pending.removeFirst());
+            batchPos = 0;
+        }
+    }
+
+    /* Gets values of the current row. */
+    public byte[][] getRow() {
+        return row;
+    }
+
+    /* Cancels batches that are still being fetched. */
+    @Override
+    public void close() {
+        for (Future<byte[][][]> f : pending) {
+            f.cancel(true);
+        }
+        pending.clear();
+        batch = null;
+        row = null;
+    }
+
+    private void fill() {
+        long total = target.size();
+        int fetchSize = table.getFetchSize();
+        while (pending.size() < prefetch && nextFetch < total) {
+            long stop = Math.min(total, nextFetch + fetchSize);
+            pending.add(table.fetch(target, nextFetch, stop, selectedCols));
+            nextFetch = stop;
+        }
+    }
+}
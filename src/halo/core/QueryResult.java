@@ -1,7 +1,7 @@
 package halo.core;
 
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 
 /**
  * Created by riz on 14-6-30.
@@ -9,7 +9,7 @@ import java.util.LinkedList;
 public class QueryResult{
     public QueryResult(int columns){
         this.columns = columns;
-        this.rows = new LinkedList<byte[][]>();
+        this.rows = new ArrayList<byte[][]>();
     }
 
     public int getNumberOfColumns(){
@@ -29,5 +29,5 @@ public class QueryResult{
     }
 
     int columns;
-    LinkedList<byte[][]> rows;
+    ArrayList<byte[][]> rows;
 }
@@ -0,0 +1,475 @@
+package halo.core;
+
+import java.util.Arrays;
+
+/**
+ * A compressed bitmap of row ids.
+ *
+ * Row ids are split into the high 48 bits and the low 16 bits, rows
+ * sharing the same high bits are kept in one container. A container
+ * holds either a sorted array of the low bits (sparse) or a 2^16 bit
+ * bitmap (dense), and is converted between the two as its cardinality
+ * crosses ARRAY_LIMIT. Dense row ids from TableProperty pack into
+ * bitmap containers at about one bit per row.
+ *
+ * and(), or() and andNot() modify this bitmap in place.
+ */
+public class RowBitmap {
+    /* The maximum cardinality of an array container */
+    static final int ARRAY_LIMIT = 4096;
+
+    private static abstract class Container {
+        abstract Container add(char x);
+
+        abstract boolean contains(char x);
+
+        abstract int cardinality();
+
+        abstract Container and(Container c);
+
+        abstract Container or(Container c);
+
+        abstract Container andNot(Container c);
+
+        abstract Container copy();
+
+        /* Appends row ids of this container to rows in ascending order. */
+        abstract void addTo(long high, RowSet rows);
+    }
+
+    private static class ArrayContainer extends Container {
+        char[] content;
+        int size;
+
+        ArrayContainer(char[] content, int size) {
+            this.content = content;
+            this.size = size;
+        }
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        @Override
+        Container add(char x) {
+            int i = Arrays.binarySearch(content, 0, size, x);
+            if (i >= 0) {
+                return this;
+            }
+            if (size >= ARRAY_LIMIT) {
+                return toBitmap().add(x);
+            }
+            i = -i - 1;
+            if (size == content.length) {
+                content = Arrays.copyOf(content, Math.min(size * 2, ARRAY_LIMIT));
+            }
+            System.arraycopy(content, i, content, i + 1, size - i);
+            content[i] = x;
+            ++size;
+            return this;
+        }
+
+        @Override
+        boolean contains(char x) {
+            return Arrays.binarySearch(content, 0, size, x) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return size;
+        }
+
+        @Override
+        Container and(Container c) {
+            int n = 0;
+            if (c instanceof ArrayContainer) {
+                ArrayContainer other = (ArrayContainer) c;
+                int i = 0, j = 0;
+                while (i < size && j < other.size) {
+                    char a = content[i], b = other.content[j];
+                    if (a < b) {
+                        ++i;
+                    } else if (a > b) {
+                        ++j;
+                    } else {
+                        content[n++] = a;
+                        ++i;
+                        ++j;
+                    }
+                }
+            } else {
+                for (int i = 0; i < size; ++i) {
+                    if (c.contains(content[i])) {
+                        content[n++] = content[i];
+                    }
+                }
+            }
+            size = n;
+            return this;
+        }
+
+        @Override
+        Container or(Container c) {
+            if (c instanceof BitmapContainer) {
+                BitmapContainer result = (BitmapContainer) c.copy();
+                for (int i = 0; i < size; ++i) {
+                    result.add(content[i]);
+                }
+                return result;
+            }
+
+            ArrayContainer other = (ArrayContainer) c;
+            char[] merged = new char[size + other.size];
+            int i = 0, j = 0, n = 0;
+            while (i < size && j < other.size) {
+                char a = content[i], b = other.content[j];
+                if (a < b) {
+                    merged[n++] = a;
+                    ++i;
+                } else if (a > b) {
+                    merged[n++] = b;
+                    ++j;
+                } else {
+                    merged[n++] = a;
+                    ++i;
+                    ++j;
+                }
+            }
+            while (i < size) {
+                merged[n++] = content[i++];
+            }
+            while (j < other.size) {
+                merged[n++] = other.content[j++];
+            }
+            ArrayContainer result = new ArrayContainer(merged, n);
+            return n > ARRAY_LIMIT ? result.toBitmap() : result;
+        }
+
+        @Override
+        Container andNot(Container c) {
+            int n = 0;
+            for (int i = 0; i < size; ++i) {
+                if (!c.contains(content[i])) {
+                    content[n++] = content[i];
+                }
+            }
+            size = n;
+            return this;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(content, Math.max(size, 4)), size);
+        }
+
+        @Override
+        void addTo(long high, RowSet rows) {
+            for (int i = 0; i < size; ++i) {
+                rows.add(high | content[i]);
+            }
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < size; ++i) {
+                bitmap.add(content[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+        long[] words;
+        int cardinality;
+
+        BitmapContainer() {
+            words = new long[1024];
+            cardinality = 0;
+        }
+
+        @Override
+        Container add(char x) {
+            long word = words[x >>> 6];
+            long bit = 1L << x;
+            if ((word & bit) == 0) {
+                words[x >>> 6] = word | bit;
+                ++cardinality;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char x) {
+            return (words[x >>> 6] & (1L << x)) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container and(Container c) {
+            if (c instanceof ArrayContainer) {
+                ArrayContainer other = (ArrayContainer) c;
+                char[] content = new char[other.size];
+                int n = 0;
+                for (int i = 0; i < other.size; ++i) {
+                    if (contains(other.content[i])) {
+                        content[n++] = other.content[i];
+                    }
+                }
+                return new ArrayContainer(content, n);
+            }
+
+            long[] other = ((BitmapContainer) c).words;
+            for (int i = 0; i < words.length; ++i) {
+                words[i] &= other[i];
+            }
+            return shrink();
+        }
+
+        @Override
+        Container or(Container c) {
+            if (c instanceof ArrayContainer) {
+                ArrayContainer other = (ArrayContainer) c;
+                for (int i = 0; i < other.size; ++i) {
+                    add(other.content[i]);
+                }
+                return this;
+            }
+
+            long[] other = ((BitmapContainer) c).words;
+            for (int i = 0; i < words.length; ++i) {
+                words[i] |= other[i];
+            }
+            recount();
+            return this;
+        }
+
+        @Override
+        Container andNot(Container c) {
+            if (c instanceof ArrayContainer) {
+                ArrayContainer other = (ArrayContainer) c;
+                for (int i = 0; i < other.size; ++i) {
+                    char x = other.content[i];
+                    long bit = 1L << x;
+                    if ((words[x >>> 6] & bit) != 0) {
+                        words[x >>> 6] &= ~bit;
+                        --cardinality;
+                    }
+                }
+                return shrink();
+            }
+
+            long[] other = ((BitmapContainer) c).words;
+            for (int i = 0; i < words.length; ++i) {
+                words[i] &= ~other[i];
+            }
+            recount();
+            return shrink();
+        }
+
+        @Override
+        Container copy() {
+            BitmapContainer bitmap = new BitmapContainer();
+            System.arraycopy(words, 0, bitmap.words, 0, words.length);
+            bitmap.cardinality = cardinality;
+            return bitmap;
+        }
+
+        @Override
+        void addTo(long high, RowSet rows) {
+            for (int i = 0; i < words.length; ++i) {
+                long word = words[i];
+                while (word != 0) {
+                    rows.add(high | (i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        private void recount() {
+            int n = 0;
+            for (long word : words) {
+                n += Long.bitCount(word);
+            }
+            cardinality = n;
+        }
+
+        /* Converts to an array container if this container is sparse. */
+        private Container shrink() {
+            recount();
+            if (cardinality > ARRAY_LIMIT) {
+                return this;
+            }
+            char[] content = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < words.length; ++i) {
+                long word = words[i];
+                while (word != 0) {
+                    content[n++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(content, n);
+        }
+    }
+
+    /* High 48 bits of the row ids in each container, ascending */
+    private long[] keys;
+    private Container[] containers;
+    private int size;
+
+    public RowBitmap() {
+        keys = new long[4];
+        containers = new Container[4];
+        size = 0;
+    }
+
+    /* Creates a bitmap of the rows in a RowSet, rows need not be sorted. */
+    public static RowBitmap valueOf(RowSet rows) {
+        RowBitmap bitmap = new RowBitmap();
+        long n = rows.size();
+        for (long i = 0; i < n; ++i) {
+            bitmap.add(rows.getRowId(i));
+        }
+        return bitmap;
+    }
+
+    public void add(long rowId) {
+        long key = rowId >>> 16;
+        char low = (char) rowId;
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        if (i >= 0) {
+            containers[i] = containers[i].add(low);
+            return;
+        }
+
+        i = -i - 1;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = new ArrayContainer().add(low);
+        ++size;
+    }
+
+    public boolean contains(long rowId) {
+        int i = Arrays.binarySearch(keys, 0, size, rowId >>> 16);
+        return i >= 0 && containers[i].contains((char) rowId);
+    }
+
+    /* Gets the number of rows in this bitmap. */
+    public long cardinality() {
+        long n = 0;
+        for (int i = 0; i < size; ++i) {
+            n += containers[i].cardinality();
+        }
+        return n;
+    }
+
+    /**
+     * Keeps only rows that are also in another bitmap.
+     * @return this
+     */
+    public RowBitmap and(RowBitmap other) {
+        int i = 0, j = 0, n = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                ++i;
+            } else if (keys[i] > other.keys[j]) {
+                ++j;
+            } else {
+                Container c = containers[i].and(other.containers[j]);
+                if (c.cardinality() != 0) {
+                    keys[n] = keys[i];
+                    containers[n] = c;
+                    ++n;
+                }
+                ++i;
+                ++j;
+            }
+        }
+        Arrays.fill(containers, n, size, null);
+        size = n;
+        return this;
+    }
+
+    /**
+     * Adds all rows of another bitmap.
+     * @return this
+     */
+    public RowBitmap or(RowBitmap other) {
+        long[] mergedKeys = new long[size + other.size];
+        Container[] merged = new Container[size + other.size];
+        int i = 0, j = 0, n = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                mergedKeys[n] = keys[i];
+                merged[n++] = containers[i++];
+            } else if (keys[i] > other.keys[j]) {
+                mergedKeys[n] = other.keys[j];
+                merged[n++] = other.containers[j++].copy();
+            } else {
+                mergedKeys[n] = keys[i];
+                merged[n++] = containers[i++].or(other.containers[j++]);
+            }
+        }
+        while (i < size) {
+            mergedKeys[n] = keys[i];
+            merged[n++] = containers[i++];
+        }
+        while (j < other.size) {
+            mergedKeys[n] = other.keys[j];
+            merged[n++] = other.containers[j++].copy();
+        }
+        keys = mergedKeys;
+        containers = merged;
+        size = n;
+        if (size == 0) {
+            keys = new long[4];
+            containers = new Container[4];
+        }
+        return this;
+    }
+
+    /**
+     * Removes all rows that are in another bitmap.
+     * @return this
+     */
+    public RowBitmap andNot(RowBitmap other) {
+        int i = 0, j = 0, n = 0;
+        while (i < size) {
+            while (j < other.size && other.keys[j] < keys[i]) {
+                ++j;
+            }
+            Container c = containers[i];
+            if (j < other.size && other.keys[j] == keys[i]) {
+                c = c.andNot(other.containers[j]);
+            }
+            if (c.cardinality() != 0) {
+                keys[n] = keys[i];
+                containers[n] = c;
+                ++n;
+            }
+            ++i;
+        }
+        Arrays.fill(containers, n, size, null);
+        size = n;
+        return this;
+    }
+
+    /* Creates a sorted RowSet of rows in this bitmap. */
+    public RowSet toRowSet() {
+        RowSet rows = new RowSet();
+        for (int i = 0; i < size; ++i) {
+            containers[i].addTo(keys[i] << 16, rows);
+        }
+        rows.setSorted();
+        return rows;
+    }
+}
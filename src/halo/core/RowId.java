@@ -2,6 +2,8 @@ package halo.core;
 
 import halo.common.Bytes;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * A tool class to help manipulate RowId's
@@ -27,10 +29,53 @@ public class RowId {
         return Bytes.toLong(rowId);
     }
 
+    /**
+     * Makes the row key of a row in the primary table. Row keys of a table
+     * salted with N buckets start with a byte of rowid mod N, so rows of
+     * consecutive row ids are spread over N regions.
+     * @param buckets Number of salt buckets, TableProperty.NO_SALT for
+     *                tables keyed by the row id alone.
+     */
+    public static byte[] toRowKey(long rowId, int buckets){
+        if (buckets == TableProperty.NO_SALT){
+            return valueOf(rowId);
+        }
+        return ByteBuffer.allocate(9).put(bucketOf(rowId, buckets)).putLong(rowId).array();
+    }
+
+    /* Gets the row id of a row key in the primary table. */
+    public static long ofRowKey(byte[] rowKey, int buckets){
+        if (buckets == TableProperty.NO_SALT){
+            return valueOf(rowKey);
+        }
+        return ByteBuffer.wrap(rowKey, 1, 8).getLong();
+    }
+
+    /* Gets the salt byte of a row id. */
+    public static byte bucketOf(long rowId, int buckets){
+        return (byte) (rowId % buckets);
+    }
+
+    /* Gets the keys that split a salted table into one region per bucket. */
+    public static byte[][] splitKeys(int buckets){
+        byte[][] keys = new byte[buckets - 1][];
+        for (int i = 1; i < buckets; ++i){
+            keys[i - 1] = new byte[]{(byte) i};
+        }
+        return keys;
+    }
+
     /**
      * Extract a RowId from an index record.
      */
     public static byte[] fromIndexRow(byte[] row) {
         return Bytes.range(row, row.length-8, 8);
     }
+
+    /**
+     * Extract the RowId value from an index record.
+     */
+    public static long idOfIndexRow(byte[] row) {
+        return ByteBuffer.wrap(row, row.length-8, 8).getLong();
+    }
 }
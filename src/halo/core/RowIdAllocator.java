@@ -0,0 +1,125 @@
+package halo.core;
+
+import halo.common.Bytes;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates row ids of a table from the durable row id sequence kept in
+ * the metadata table.
+ *
+ * Row ids are leased in blocks with one atomic increment of the sequence,
+ * so writers in different processes never get the same row id. Row ids
+ * left in a lease when the table is closed are never used.
+ *
+ * Threads take row ids from the current lease with an atomic add, only
+ * renewing the lease is serialized.
+ */
+class RowIdAllocator {
+    /**
+     * Row ids [next, limit) leased from the sequence. next may run past
+     * limit, row ids at or above limit are never handed out.
+     */
+    private static class Lease {
+        final AtomicLong next;
+        final long limit;
+
+        Lease(long first, long limit) {
+            this.next = new AtomicLong(first);
+            this.limit = limit;
+        }
+    }
+
+    /* Default number of row ids leased with one increment */
+    static final int DEFAULT_LEASE_SIZE = 1000;
+
+    /* Sequence value of tables created before the sequence existed */
+    static final long UNKNOWN_SEQUENCE = 0;
+
+    private TableHandlePool handlePool;
+    private TableProperty tableProperty;
+    private byte[] row;
+    private volatile int leaseSize = DEFAULT_LEASE_SIZE;
+    private volatile Lease lease = new Lease(0, 0);
+
+    RowIdAllocator(TableHandlePool handlePool, TableProperty tableProperty) {
+        this.handlePool = handlePool;
+        this.tableProperty = tableProperty;
+        this.row = tableProperty.getName().getBytes();
+    }
+
+    int getLeaseSize() {
+        return leaseSize;
+    }
+
+    void setLeaseSize(int leaseSize) {
+        this.leaseSize = leaseSize;
+    }
+
+    /**
+     * Allocates a contiguous block of row ids, a new lease is taken when
+     * the current one can't hold the block.
+     * @param count Number of row ids to allocate.
+     * @return The first row id of the block.
+     */
+    long allocate(int count) throws IOException {
+        while (true) {
+            Lease current = lease;
+            long first = current.next.getAndAdd(count);
+            if (first + count <= current.limit) {
+                return first;
+            }
+            renew(current, count);
+        }
+    }
+
+    /* Replaces an exhausted lease, unless another thread already did. */
+    private synchronized void renew(Lease exhausted, int count) throws IOException {
+        if (lease != exhausted) {
+            return;
+        }
+
+        long size = Math.max(count, leaseSize);
+        long limit;
+        HTableInterface metadataTable = handlePool.acquire(HaloAdmin.METADATA_TABLE);
+        try {
+            limit = metadataTable.incrementColumnValue(
+                    row, HaloAdmin.METADATA_FAMILY, HaloAdmin.METADATA_ROWID_SEQUENCE, size);
+        } finally {
+            handlePool.release(HaloAdmin.METADATA_TABLE, metadataTable);
+        }
+        lease = new Lease(limit - size, limit);
+        tableProperty.setNextRowId(limit);
+    }
+
+    /**
+     * Creates the sequence of a table that doesn't have one yet, unless
+     * another writer has created it in the meantime.
+     * @param upperBound The row id above all rows of the table.
+     */
+    void initialize(long upperBound) throws IOException {
+        HTableInterface metadataTable = handlePool.acquire(HaloAdmin.METADATA_TABLE);
+        try {
+            Put put = new Put(row);
+            put.add(HaloAdmin.METADATA_FAMILY, HaloAdmin.METADATA_ROWID_SEQUENCE, Bytes.toBytes(upperBound));
+            if (metadataTable.checkAndPut(row, HaloAdmin.METADATA_FAMILY,
+                    HaloAdmin.METADATA_ROWID_SEQUENCE, null, put)) {
+                tableProperty.setNextRowId(upperBound);
+                return;
+            }
+
+            byte[] value = metadataTable.get(new Get(row))
+                    .getValue(HaloAdmin.METADATA_FAMILY, HaloAdmin.METADATA_ROWID_SEQUENCE);
+            if (value == null) {
+                throw new IOException("Failed to create row id sequence of table " + tableProperty.getName());
+            }
+            tableProperty.setNextRowId(Bytes.toLong(value));
+        } finally {
+            handlePool.release(HaloAdmin.METADATA_TABLE, metadataTable);
+        }
+    }
+}
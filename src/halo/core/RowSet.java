@@ -1,26 +1,161 @@
 package halo.core;
 
-import halo.common.Bytes;
-
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
+ * A set of row ids.
+ * Row ids are kept as primitive longs and are converted to row keys only
+ * when they are handed to HBase.
+ *
+ * At most BUFFER_SIZE rows are kept on the heap. When the buffer is full
+ * it is sorted and spilled to a temporary file as a sorted run. Sorting
+ * a spilled set merges all runs into a single run, union and intersect
+ * stream over the runs of both sides. Runs are memory mapped for reading.
  *
+ * Rows are enumerated by get() in an unspecified order until the set is
+ * sorted. Call release() to remove the spilled files once the set is no
+ * longer used, files of a set that is never released are left behind.
  */
 public class RowSet {
     /* The maximum number of rows that may be bufferred */
     public static final long BUFFER_SIZE = 0x10000;
 
-    private ArrayList<byte[]> rowBuffer;
+    /* Initial capacity of the row buffer */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * A sorted run of row ids spilled to a temporary file.
+     */
+    private static class SpillRun {
+        /* Number of row ids mapped by one window, 1G bytes */
+        private static final int WINDOW_SHIFT = 27;
+        private static final long WINDOW_MASK = (1L << WINDOW_SHIFT) - 1;
+
+        private File file;
+        private long count;
+        private LongBuffer[] windows;
+
+        SpillRun(File file, long count) {
+            this.file = file;
+            this.count = count;
+        }
+
+        /* Creates an empty run file that is written by a RunWriter. */
+        static SpillRun create() throws IOException {
+            File file = File.createTempFile("halo-rowset-", ".run");
+            return new SpillRun(file, 0);
+        }
+
+        long size() {
+            return count;
+        }
+
+        long get(long i) throws IOException {
+            if (windows == null) {
+                map();
+            }
+            return windows[(int) (i >>> WINDOW_SHIFT)].get((int) (i & WINDOW_MASK));
+        }
+
+        private void map() throws IOException {
+            int n = (int) ((count + WINDOW_MASK) >>> WINDOW_SHIFT);
+            LongBuffer[] mapped = new LongBuffer[n];
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                for (int w = 0; w < n; ++w) {
+                    long start = (long) w << WINDOW_SHIFT;
+                    long length = Math.min(count - start, 1L << WINDOW_SHIFT);
+                    mapped[w] = channel.map(FileChannel.MapMode.READ_ONLY, start * 8, length * 8)
+                            .asLongBuffer();
+                }
+            } finally {
+                raf.close();
+            }
+            windows = mapped;
+        }
+
+        /**
+         * Drops the mapped windows and removes the file. Java has no way to
+         * unmap a buffer, the mapping goes away when the windows are garbage
+         * collected; until then the disk space of a removed file may still
+         * be held, and on Windows the file can't be removed at all.
+         */
+        void delete() {
+            windows = null;
+            file.delete();
+        }
+    }
+
+    /**
+     * Appends row ids to a SpillRun.
+     */
+    private static class RunWriter {
+        private SpillRun run;
+        private RandomAccessFile raf;
+        private FileChannel channel;
+        private ByteBuffer buffer;
+
+        RunWriter(SpillRun run) throws IOException {
+            this.run = run;
+            this.raf = new RandomAccessFile(run.file, "rw");
+            this.channel = raf.getChannel();
+            this.buffer = ByteBuffer.allocateDirect(0x10000);
+        }
+
+        void write(long rowId) throws IOException {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.putLong(rowId);
+            ++run.count;
+        }
+
+        void close() throws IOException {
+            try {
+                drain();
+            } finally {
+                raf.close();
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Sequential reader over a sorted part of a RowSet.
+     */
+    private static abstract class Cursor {
+        long current;
+
+        /* Moves to the next row id, returns false at the end. */
+        abstract boolean advance() throws IOException;
+    }
+
+    private long[] rowBuffer;
     private long totalRows;
     private long bufferStart;
     private boolean isSorted;
+    private ArrayList<SpillRun> runs;
 
     public RowSet() {
         totalRows = 0;
         bufferStart = 0;
-        rowBuffer = new ArrayList<byte[]>((int) BUFFER_SIZE);
+        rowBuffer = new long[INITIAL_CAPACITY];
         isSorted = false;
+        runs = new ArrayList<SpillRun>();
     }
 
     public long size() {
@@ -28,97 +163,283 @@ public class RowSet {
     }
 
     public void add(byte[] rowKey) {
-        rowBuffer.add(rowKey);
+        add(RowId.valueOf(rowKey));
+    }
+
+    public void add(long rowId) {
+        int n = bufferedRows();
+        if (n == rowBuffer.length) {
+            if (n >= BUFFER_SIZE) {
+                spill();
+                n = 0;
+            } else {
+                rowBuffer = Arrays.copyOf(rowBuffer, (int) Math.min(n * 2, BUFFER_SIZE));
+            }
+        }
+        rowBuffer[n] = rowId;
         ++totalRows;
         isSorted = false;
     }
 
+    /* Appends all rows of another set in the order they are enumerated. */
+    public void addAll(RowSet rows) {
+        long n = rows.size();
+        for (long i = 0; i < n; ++i) {
+            add(rows.getRowId(i));
+        }
+    }
+
     public void sort() {
-        rowBuffer.sort(RowId.Comparator);
+        if (isSorted) {
+            return;
+        }
+
+        Arrays.sort(rowBuffer, 0, bufferedRows());
+        if (!runs.isEmpty()) {
+            try {
+                ArrayList<Cursor> cursors = new ArrayList<Cursor>(runs.size() + 1);
+                for (SpillRun run : runs) {
+                    cursors.add(runCursor(run));
+                }
+                cursors.add(bufferCursor());
+
+                SpillRun merged = SpillRun.create();
+                RunWriter writer = new RunWriter(merged);
+                try {
+                    mergeRuns(cursors, writer);
+                } finally {
+                    writer.close();
+                }
+
+                for (SpillRun run : runs) {
+                    run.delete();
+                }
+                runs.clear();
+                runs.add(merged);
+                bufferStart = totalRows;
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to sort spilled rows", e);
+            }
+        }
         isSorted = true;
     }
 
+    /* Marks rows as sorted, for rows that are added in ascending order. */
+    void setSorted() {
+        isSorted = true;
+    }
+
+    /* Gets the row key of the i-th row. */
     public byte[] get(long i) {
-        return rowBuffer.get((int) (i - bufferStart));
+        return RowId.valueOf(getRowId(i));
     }
 
-    public RowSet union(RowSet rows) {
-        if (!isSorted) {
-            sort();
+    /* Gets the row id of the i-th row. */
+    public long getRowId(long i) {
+        if (i >= bufferStart) {
+            return rowBuffer[(int) (i - bufferStart)];
         }
-        if (!rows.isSorted) {
-            sort();
+        try {
+            for (SpillRun run : runs) {
+                if (i < run.size()) {
+                    return run.get(i);
+                }
+                i -= run.size();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read spilled rows", e);
         }
+        throw new IndexOutOfBoundsException();
+    }
+
+    /* Removes files of the spilled rows, the set is empty after release. */
+    public void release() {
+        for (SpillRun run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        rowBuffer = new long[INITIAL_CAPACITY];
+        totalRows = 0;
+        bufferStart = 0;
+        isSorted = false;
+    }
+
+    public RowSet union(RowSet rows) {
+        sort();
+        rows.sort();
 
         RowSet result = new RowSet();
-        result.isSorted = true;
-        ArrayList<byte[]> merged = result.rowBuffer;
-        ArrayList<byte[]> left = rowBuffer;
-        ArrayList<byte[]> right = rows.rowBuffer;
-        int lend = left.size();
-        int rend = right.size();
-        int l = 0, r = 0;
-        while (l < lend && r < rend) {
-            byte[] lv = left.get(l);
-            byte[] rv = right.get(r);
-            int diff = Bytes.compare(lv, rv);
-            if (diff < 0) {
-                merged.add(lv);
-                ++l;
-            } else if (diff > 0) {
-                merged.add(rv);
-                ++r;
-            } else {
-                merged.add(lv);
-                ++l;
-                ++r;
+        try {
+            Cursor left = cursor();
+            Cursor right = rows.cursor();
+            boolean lmore = left.advance();
+            boolean rmore = right.advance();
+            while (lmore && rmore) {
+                long lv = left.current;
+                long rv = right.current;
+                if (lv < rv) {
+                    result.add(lv);
+                    lmore = left.advance();
+                } else if (lv > rv) {
+                    result.add(rv);
+                    rmore = right.advance();
+                } else {
+                    result.add(lv);
+                    lmore = left.advance();
+                    rmore = right.advance();
+                }
             }
-        }
 
-        while (l < lend){
-            merged.add(left.get(l));
-            ++l;
-        }
-        while (r < rend){
-            merged.add(right.get(r));
-            ++r;
+            while (lmore){
+                result.add(left.current);
+                lmore = left.advance();
+            }
+            while (rmore){
+                result.add(right.current);
+                rmore = right.advance();
+            }
+        } catch (IOException e) {
+            result.release();
+            throw new RuntimeException("Failed to read spilled rows", e);
         }
-        result.totalRows = merged.size();
+        result.isSorted = true;
         return result;
     }
 
     public RowSet intersect(RowSet rows) {
-        if (!isSorted) {
-            sort();
-        }
-        if (!rows.isSorted) {
-            sort();
-        }
+        sort();
+        rows.sort();
 
         RowSet result = new RowSet();
+        try {
+            Cursor left = cursor();
+            Cursor right = rows.cursor();
+            boolean lmore = left.advance();
+            boolean rmore = right.advance();
+            while (lmore && rmore) {
+                long lv = left.current;
+                long rv = right.current;
+                if (lv < rv) {
+                    lmore = left.advance();
+                } else if (lv > rv) {
+                    rmore = right.advance();
+                } else {
+                    result.add(lv);
+                    lmore = left.advance();
+                    rmore = right.advance();
+                }
+            }
+        } catch (IOException e) {
+            result.release();
+            throw new RuntimeException("Failed to read spilled rows", e);
+        }
         result.isSorted = true;
-        ArrayList<byte[]> merged = result.rowBuffer;
-        ArrayList<byte[]> left = rowBuffer;
-        ArrayList<byte[]> right = rows.rowBuffer;
-        int lend = left.size();
-        int rend = right.size();
-        int l = 0, r = 0;
-        while (l < lend && r < rend) {
-            byte[] lv = left.get(l);
-            byte[] rv = right.get(r);
-            int diff = Bytes.compare(lv, rv);
-            if (diff < 0) {
-                ++l;
-            } else if (diff > 0) {
-                ++r;
-            } else {
-                merged.add(lv);
-                ++l;
-                ++r;
+        return result;
+    }
+
+    private int bufferedRows() {
+        return (int) (totalRows - bufferStart);
+    }
+
+    /* Writes the full buffer to a new sorted run. */
+    private void spill() {
+        int n = bufferedRows();
+        Arrays.sort(rowBuffer, 0, n);
+        try {
+            SpillRun run = SpillRun.create();
+            RunWriter writer = new RunWriter(run);
+            try {
+                for (int i = 0; i < n; ++i) {
+                    writer.write(rowBuffer[i]);
+                }
+            } finally {
+                writer.close();
             }
+            runs.add(run);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to spill rows", e);
         }
+        bufferStart += n;
+    }
 
-        result.totalRows = merged.size();
-        return result;
+    /* Merges sorted cursors into a run, k-way. */
+    private static void mergeRuns(List<Cursor> cursors, RunWriter writer) throws IOException {
+        PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(cursors.size(), new Comparator<Cursor>() {
+            @Override
+            public int compare(Cursor o1, Cursor o2) {
+                return o1.current < o2.current ? -1 : (o1.current > o2.current ? 1 : 0);
+            }
+        });
+        for (Cursor c : cursors) {
+            if (c.advance()) {
+                heap.add(c);
+            }
+        }
+        while (!heap.isEmpty()) {
+            Cursor c = heap.poll();
+            writer.write(c.current);
+            if (c.advance()) {
+                heap.add(c);
+            }
+        }
+    }
+
+    /* Reads all rows in order of runs and then the buffer. */
+    private Cursor cursor() {
+        final Iterator<SpillRun> it = runs.iterator();
+        final Cursor buffer = bufferCursor();
+        return new Cursor() {
+            Cursor run = null;
+
+            @Override
+            boolean advance() throws IOException {
+                while (true) {
+                    if (run != null && run.advance()) {
+                        current = run.current;
+                        return true;
+                    }
+                    if (!it.hasNext()) {
+                        break;
+                    }
+                    run = runCursor(it.next());
+                }
+                if (buffer.advance()) {
+                    current = buffer.current;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private Cursor bufferCursor() {
+        final int n = bufferedRows();
+        return new Cursor() {
+            int i = 0;
+
+            @Override
+            boolean advance() {
+                if (i < n) {
+                    current = rowBuffer[i++];
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private static Cursor runCursor(final SpillRun run) {
+        return new Cursor() {
+            long i = 0;
+
+            @Override
+            boolean advance() throws IOException {
+                if (i < run.size()) {
+                    current = run.get(i++);
+                    return true;
+                }
+                return false;
+            }
+        };
     }
 }
@@ -0,0 +1,93 @@
+package halo.core;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Lends table handles to worker threads.
+ * HTable is NOT thread safe, a handle borrowed from the pool must be used
+ * by one thread only and be given back with release() when done.
+ *
+ * Handles are taken from a shared HConnection when the pool is given one,
+ * those are lightweight and share the region location cache. Handles are
+ * opened on first use only, the time spent opening them is recorded in
+ * getMetrics().
+ */
+class TableHandlePool {
+    private Configuration conf;
+    private HConnection connection;
+    private ConcurrentHashMap<String, ConcurrentLinkedQueue<HTableInterface>> idle;
+    private ArrayList<HTableInterface> opened;
+    private HandleMetrics metrics = new HandleMetrics();
+
+    TableHandlePool(Configuration conf) {
+        this(conf, null);
+    }
+
+    TableHandlePool(Configuration conf, HConnection connection) {
+        this.conf = conf;
+        this.connection = connection;
+        this.idle = new ConcurrentHashMap<String, ConcurrentLinkedQueue<HTableInterface>>();
+        this.opened = new ArrayList<HTableInterface>();
+    }
+
+    /**
+     * Borrows a handle of the table, a new handle is opened if there
+     * is no idle one.
+     */
+    HTableInterface acquire(String tableName) throws IOException {
+        metrics.recordAcquire();
+        HTableInterface table = idleHandles(tableName).poll();
+        if (table == null) {
+            long start = System.nanoTime();
+            table = connection != null ? connection.getTable(tableName) : new HTable(conf, tableName);
+            metrics.recordOpen(System.nanoTime() - start);
+            synchronized (opened) {
+                opened.add(table);
+            }
+        }
+        return table;
+    }
+
+    HandleMetrics getMetrics() {
+        return metrics;
+    }
+
+    /* Gives back a handle borrowed by acquire() */
+    void release(String tableName, HTableInterface table) {
+        idleHandles(tableName).offer(table);
+    }
+
+    /* Closes all handles ever opened by this pool. */
+    void close() {
+        synchronized (opened) {
+            for (HTableInterface t : opened) {
+                try {
+                    t.close();
+                } catch (Exception e) {
+                }
+            }
+            opened.clear();
+        }
+        idle.clear();
+    }
+
+    private ConcurrentLinkedQueue<HTableInterface> idleHandles(String tableName) {
+        ConcurrentLinkedQueue<HTableInterface> queue = idle.get(tableName);
+        if (queue == null) {
+            queue = new ConcurrentLinkedQueue<HTableInterface>();
+            ConcurrentLinkedQueue<HTableInterface> existing = idle.putIfAbsent(tableName, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        return queue;
+    }
+}
@@ -1,22 +1,55 @@
 package halo.core;
 
+import java.io.IOException;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by riz on 14-7-1.
  */
 public class TableProperty {
+    /* Values are stored as given by the client */
+    public static final int FORMAT_PLAIN = 1;
+
+    /* Values are stored in the ordered form of DataType.toOrdered() */
+    public static final int FORMAT_ORDERED = 2;
+
+    /* Format of tables created by this version */
+    public static final int CURRENT_FORMAT = FORMAT_ORDERED;
+
+    /* Primary row keys are the row ids alone */
+    public static final int NO_SALT = 0;
+
+    /* Salt buckets are told apart by one byte of the row key */
+    public static final int MAX_SALT_BUCKETS = 256;
+
     private String name;
     private ColumnProperty[] columnProperties;
-    private long nextRowId;
+    private final AtomicLong nextRowId = new AtomicLong();
     private String owner;
     private Date createDate;
+    private TableStatistics statistics;
+    private int formatVersion;
+    private int saltBuckets = NO_SALT;
 
     public TableProperty(String tableName, ColumnProperty[] cols){
         setName(tableName);
         setNextRowId(1);
         setColumnProperties(cols);
         setCreateDate(new Date());
+        setFormatVersion(CURRENT_FORMAT);
+    }
+
+    /* Makes a copy that shares the column properties and statistics. */
+    public TableProperty copy(){
+        TableProperty prop = new TableProperty(name, columnProperties);
+        prop.setOwner(owner)
+                .setCreateDate(createDate)
+                .setStatistics(statistics)
+                .setFormatVersion(formatVersion)
+                .setSaltBuckets(saltBuckets)
+                .setNextRowId(getRowIdUpperBound());
+        return prop;
     }
 
     public String getName() {
@@ -55,12 +88,81 @@ public class TableProperty {
         return this;
     }
 
+    /* Gets how values are stored in the primary and index tables. */
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public TableProperty setFormatVersion(int formatVersion) {
+        this.formatVersion = formatVersion;
+        return this;
+    }
+
+    /**
+     * Gets the number of buckets that rows of the primary table are spread
+     * over, see RowId.toRowKey(). NO_SALT for row keys of row ids alone.
+     */
+    public int getSaltBuckets() {
+        return saltBuckets;
+    }
+
+    /**
+     * Sets the number of salt buckets of a table to be created. The primary
+     * table is pre-split into one region per bucket, so inserts go to all
+     * the regions at the same time instead of to the last one.
+     */
+    public TableProperty setSaltBuckets(int saltBuckets) {
+        this.saltBuckets = saltBuckets;
+        return this;
+    }
+
+    /**
+     * Converts a serialized value of a column to the form it is stored in.
+     * Stored values of FORMAT_ORDERED tables sort as the values do.
+     * @throws IOException If the value can't be converted, such as a
+     *         DATETIME value that is not "yyyy-MM-dd HH:mm:ss".
+     */
+    public byte[] toStoredValue(int column, byte[] value) throws IOException {
+        if (formatVersion < FORMAT_ORDERED) {
+            return value;
+        }
+        ColumnProperty prop = getColumnProperty(column);
+        try {
+            return prop.getDataType().toOrdered(value);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Column " + prop.getLabel() + ": " + e.getMessage());
+        }
+    }
+
+    /* Converts a stored value of a column back to its serialized value. */
+    public byte[] fromStoredValue(int column, byte[] stored) {
+        if (formatVersion < FORMAT_ORDERED) {
+            return stored;
+        }
+        return getColumnProperty(column).getDataType().fromOrdered(stored);
+    }
+
+    /* Gets statistics made by HaloAdmin.analyze(), null if never analyzed. */
+    public TableStatistics getStatistics() {
+        return statistics;
+    }
+
+    public TableProperty setStatistics(TableStatistics statistics) {
+        this.statistics = statistics;
+        return this;
+    }
+
+    /* Gets the row id above all row ids leased so far, without allocating it. */
+    public long getRowIdUpperBound(){
+        return nextRowId.get();
+    }
+
     public long getNextRowId(){
-        return nextRowId++;
+        return nextRowId.getAndIncrement();
     }
 
     public TableProperty setNextRowId(long rowid){
-        nextRowId = rowid;
+        nextRowId.set(rowid);
         return this;
     }
 
@@ -81,6 +183,65 @@ public class TableProperty {
         return -1;
     }
 
+    /**
+     * Gets the columns included in the index of a column.
+     * @return Column indexes, in the order they are declared.
+     */
+    public int[] getIncludedColumns(int column){
+        String[] labels = getColumnProperty(column).getIncludedColumns();
+        int[] included = new int[labels.length];
+        for (int i = 0; i < labels.length; ++i){
+            included[i] = findColumn(labels[i]);
+        }
+        return included;
+    }
+
+    /**
+     * Gets the columns that make the row keys of the index of a column.
+     * @return The column itself, followed by its key columns.
+     */
+    public int[] getIndexKeyColumns(int column){
+        String[] labels = getColumnProperty(column).getKeyColumns();
+        int[] key = new int[labels.length + 1];
+        key[0] = column;
+        for (int i = 0; i < labels.length; ++i){
+            key[i + 1] = findColumn(labels[i]);
+        }
+        return key;
+    }
+
+    /* Gets properties of the columns that make the row keys of the index of a column. */
+    public ColumnProperty[] getIndexKey(int column){
+        int[] key = getIndexKeyColumns(column);
+        ColumnProperty[] props = new ColumnProperty[key.length];
+        for (int i = 0; i < key.length; ++i){
+            props[i] = getColumnProperty(key[i]);
+        }
+        return props;
+    }
+
+    /* Tells if the index of a column holds the values of all the given columns. */
+    public boolean isCovering(int column, int[] selectedCols){
+        if (!getColumnProperty(column).isIndexReady()){
+            return false;
+        }
+        int[] key = getIndexKeyColumns(column);
+        int[] included = getIncludedColumns(column);
+        for (int col : selectedCols){
+            boolean found = false;
+            for (int i = 0; i < key.length && !found; ++i){
+                found = key[i] == col;
+            }
+            for (int i = 0; i < included.length && !found; ++i){
+                found = included[i] == col;
+            }
+            if (!found){
+                return false;
+            }
+        }
+        return true;
+    }
+
     public String getPrimaryTableName(){
         return getPrimaryTableName(getName());
     }
@@ -0,0 +1,39 @@
+package halo.core;
+
+import java.util.Date;
+
+/**
+ * Statistics of a table, made by HaloAdmin.analyze().
+ */
+public class TableStatistics {
+    private ColumnStatistics[] columns;
+    private Date analyzeDate;
+
+    public TableStatistics(ColumnStatistics[] columns, Date analyzeDate) {
+        this.columns = columns;
+        this.analyzeDate = analyzeDate;
+    }
+
+    /* Gets statistics of a column, null if the column has not been analyzed. */
+    public ColumnStatistics getColumnStatistics(int column) {
+        return column < columns.length ? columns[column] : null;
+    }
+
+    public Date getAnalyzeDate() {
+        return analyzeDate;
+    }
+
+    /**
+     * Gets the estimated number of rows in the table, i.e. the largest
+     * row count of the analyzed columns.
+     */
+    public long getRowCount() {
+        long rows = 0;
+        for (ColumnStatistics stats : columns) {
+            if (stats != null) {
+                rows = Math.max(rows, stats.getRowCount());
+            }
+        }
+        return rows;
+    }
+}
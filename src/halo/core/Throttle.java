@@ -0,0 +1,50 @@
+package halo.core;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limits the rate of a background job to a number of permits per second,
+ * shared by all the threads of the job. A caller waits until the permits
+ * it takes would have been handed out at that rate. Time left unused is
+ * not saved up, so a job that pauses doesn't burst afterwards.
+ */
+class Throttle {
+    /* Rate of a throttle that never waits */
+    static final long UNLIMITED = 0;
+
+    private final long nanosPerPermit;
+    private long nextFree;
+
+    /**
+     * @param permitsPerSecond Permits handed out per second, UNLIMITED for
+     *                         no limit.
+     */
+    Throttle(long permitsPerSecond) {
+        this.nanosPerPermit = permitsPerSecond > 0 ? 1000000000L / permitsPerSecond : 0;
+        this.nextFree = System.nanoTime();
+    }
+
+    void acquire(int permits) throws InterruptedIOException {
+        if (nanosPerPermit == 0) {
+            return;
+        }
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextFree < now) {
+                nextFree = now;
+            }
+            wait = nextFree - now;
+            nextFree += permits * nanosPerPermit;
+        }
+
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package halo.tests;
+
+import halo.common.Bytes;
+import halo.core.*;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Scan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Inserts rows into one shared HaloTable from 1, 2, 4, ... threads up to
+ * the number of cores, and prints the throughput of each run next to the
+ * linear speedup expected of it. Runs below MIN_EFFICIENCY of linear are
+ * flagged, as are row ids handed out to different threads that collide.
+ *
+ * Usage: ConcurrentInsertTest [salt buckets]
+ */
+public class ConcurrentInsertTest {
+    static final int ROWS_PER_THREAD = 2000;
+
+    /* Least fraction of the linear speedup a run must reach */
+    static final double MIN_EFFICIENCY = 0.7;
+
+    public static HaloTable prepareTable(HaloAdmin admin, int buckets) throws IOException {
+        if (admin.tableExists("t3")){
+            admin.dropTable("t3");
+        }
+
+        ColumnProperty[] cols = new ColumnProperty[2];
+        cols[0] = new ColumnProperty("name", DataType.varchar(16), false);
+        cols[1] = new ColumnProperty("score", DataType.INT32, true);
+        TableProperty prop = new TableProperty("t3", cols);
+        prop.setSaltBuckets(buckets);
+        prop.setCreateDate(new Date());
+        prop.setOwner("cctest");
+        admin.createTable(prop);
+        return admin.openTable("t3");
+    }
+
+    /**
+     * Runs the threads and returns the number of rows inserted per second.
+     */
+    static double run(final HaloTable table, int threads) throws Exception {
+        final int[] selectedCols = {0, 1};
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; ++t) {
+            final int worker = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < ROWS_PER_THREAD; ++i) {
+                            byte[][] values = new byte[2][];
+                            values[0] = ("w" + worker + "-" + i).getBytes();
+                            values[1] = Bytes.toBytes(i);
+                            table.insert(selectedCols, values);
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            thread.start();
+            workers.add(thread);
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        for (Thread thread : workers) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return (double) threads * ROWS_PER_THREAD * 1e9 / elapsed;
+    }
+
+    public static void main(String[] args) {
+        try {
+            Configuration conf = HBaseConfiguration.create();
+            HaloAdmin admin = new HaloAdmin(conf);
+            int buckets = args.length > 0 ? Integer.parseInt(args[0]) : TableProperty.NO_SALT;
+            HaloTable table = prepareTable(admin, buckets);
+
+            int cores = Runtime.getRuntime().availableProcessors();
+            double single = 0;
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                double rate = run(table, threads);
+                if (threads == 1) {
+                    single = rate;
+                }
+                double speedup = rate / single;
+                System.out.println(String.format("%d thread(s): %.0f rows/s, speedup %.2f, expected %d",
+                        threads, rate, speedup, threads));
+                if (speedup < threads * MIN_EFFICIENCY) {
+                    System.out.println(String.format("*** ConcurrentInsert test failed, speedup of %d threads"
+                            + " is %.2f, below %.0f%% of linear", threads, speedup, MIN_EFFICIENCY * 100));
+                }
+            }
+
+            /* Rows of colliding row ids would overwrite each other */
+            RowSet all = table.scanPrimary(new Scan());
+            long expected = 0;
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                expected += (long) threads * ROWS_PER_THREAD;
+            }
+            if (all.size() != expected) {
+                System.out.println("*** ConcurrentInsert test failed, " + all.size()
+                        + " rows found, expecting " + expected);
+            }
+            all.release();
+            table.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace(System.out);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package halo.tests;
+
+import halo.common.Bytes;
+import halo.core.*;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Scan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Reads the same random rows of a table in the serial, batched and
+ * fan-out fetch modes, and prints the throughput of each mode.
+ * All modes must return the same rows in the same order.
+ */
+public class FetchModeBenchmark {
+    static final int TABLE_ROWS = 100000;
+    static final int LOOKUPS = 5000;
+
+    public static HaloTable prepareTable(HaloAdmin admin) throws IOException {
+        if (admin.tableExists("t4")){
+            admin.dropTable("t4");
+        }
+
+        ColumnProperty[] cols = new ColumnProperty[2];
+        cols[0] = new ColumnProperty("name", DataType.varchar(16), false);
+        cols[1] = new ColumnProperty("score", DataType.INT32, false);
+        TableProperty prop = new TableProperty("t4", cols);
+        prop.setCreateDate(new Date());
+        prop.setOwner("fmbench");
+        admin.createTable(prop);
+        HaloTable table = admin.openTable("t4");
+
+        int[] selectedCols = {0, 1};
+        ArrayList<byte[][]> rows = new ArrayList<byte[][]>();
+        for (int i = 0; i < TABLE_ROWS; ++i){
+            byte[][] values = new byte[2][];
+            values[0] = ("r" + i).getBytes();
+            values[1] = Bytes.toBytes(i);
+            rows.add(values);
+        }
+        table.insertBatch(selectedCols, rows);
+        return table;
+    }
+
+    static QueryResult run(HaloTable table, int mode, RowSet target, String name) throws IOException {
+        table.setFetchMode(mode);
+        long begin = System.nanoTime();
+        QueryResult result = table.select(new int[]{0, 1}, target);
+        long elapsed = System.nanoTime() - begin;
+        System.out.println(String.format("%-8s %d rows, %.0f rows/s",
+                name, result.getNumberOfRows(), result.getNumberOfRows() * 1e9 / elapsed));
+        return result;
+    }
+
+    public static void main(String[] args) {
+        try {
+            Configuration conf = HBaseConfiguration.create();
+            HaloAdmin admin = new HaloAdmin(conf);
+            HaloTable table = prepareTable(admin);
+
+            RowSet all = table.scanPrimary(new Scan());
+            all.sort();
+            Random random = new Random(1);
+            RowSet target = new RowSet();
+            for (int i = 0; i < LOOKUPS; ++i){
+                target.add(all.getRowId((long) (random.nextDouble() * all.size())));
+            }
+            all.release();
+
+            QueryResult serial = run(table, HaloTable.FETCH_SERIAL, target, "serial");
+            QueryResult batched = run(table, HaloTable.FETCH_BATCHED, target, "batched");
+            QueryResult fanOut = run(table, HaloTable.FETCH_FAN_OUT, target, "fan-out");
+
+            if (serial.getNumberOfRows() != batched.getNumberOfRows()
+                    || serial.getNumberOfRows() != fanOut.getNumberOfRows()){
+                System.out.println("*** FetchModeBenchmark failed, row counts differ");
+            }
+            for (int i = 0; i < serial.getNumberOfRows() && i < fanOut.getNumberOfRows()
+                    && i < batched.getNumberOfRows(); ++i){
+                if (!Bytes.toString(serial.getRow(i)[0]).equals(Bytes.toString(batched.getRow(i)[0]))
+                        || !Bytes.toString(serial.getRow(i)[0]).equals(Bytes.toString(fanOut.getRow(i)[0]))){
+                    System.out.println("*** FetchModeBenchmark failed, rows differ at #" + i);
+                    break;
+                }
+            }
+            target.release();
+            table.close();
+            admin.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace(System.out);
+        }
+    }
+}
@@ -53,12 +53,12 @@ public class Main {
             rows.add(RowId.valueOf(5));
             rows.add(RowId.valueOf(6));
 
-            QueryResult result = table.select(selectedCols, rows);
-            int numberOfRows = result.getNumberOfRows();
-            for (int i = 0; i < numberOfRows; ++i) {
-                byte[][] values = result.getRow(i);
+            QueryCursor cursor = table.query(selectedCols, rows);
+            while (cursor.next()) {
+                byte[][] values = cursor.getRow();
                 System.out.println("{" + Bytes.toString(values[0]) + "," + Bytes.toInt(values[1]) + "}");
             }
+            cursor.close();
 
             table.delete(rows);
         }
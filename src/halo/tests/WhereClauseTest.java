@@ -7,6 +7,8 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 
 /**
@@ -26,34 +28,117 @@ public class WhereClauseTest {
         HaloAdmin admin = new HaloAdmin(conf);
 
         int columns = 4;
-        HaloTable table;
-        if (admin.tableExists("t2")){
-            admin.dropTable("t2");
+        HaloTable table = createTestTable(admin, "t2", columns);
+
+        int[] selectedCols = new int[columns];
+        for (int i = 0; i < columns; ++i){
+            selectedCols[i] = i;
         }
 
-        {
-            ColumnProperty[] cols = new ColumnProperty[columns];
-            for (int i = 0; i < columns; ++i){
-                cols[i] = new ColumnProperty("c" + i, DataType.INT32, true);
-            }
-            TableProperty prop = new TableProperty("t2", cols);
-            prop.setCreateDate(new Date());
-            prop.setOwner("wctest");
-            admin.createTable(prop);
+        for (int i = 0; i < 1000; ++i) {
+            table.insert(selectedCols, makeValues(i, columns));
+        }
 
-            table = admin.openTable("t2");
+        return table;
+    }
+
+    private static HaloTable createTestTable(HaloAdmin admin, String name, int columns) throws IOException {
+        if (admin.tableExists(name)){
+            admin.dropTable(name);
+        }
+
+        ColumnProperty[] cols = new ColumnProperty[columns];
+        for (int i = 0; i < columns; ++i){
+            cols[i] = new ColumnProperty("c" + i, DataType.INT32, true);
         }
+        TableProperty prop = new TableProperty(name, cols);
+        prop.setCreateDate(new Date());
+        prop.setOwner("wctest");
+        admin.createTable(prop);
+
+        return admin.openTable(name);
+    }
+
+    /**
+     * Writes the rows of prepareTestData() to another table with
+     * insertBatch() and checks that both tables read back the same.
+     */
+    public static boolean checkInsertBatch(HaloAdmin admin, HaloTable table) throws IOException, BadSqlStatement {
+        int columns = table.getTableProperty().getNumberOfColumns();
+        HaloTable batchTable = createTestTable(admin, "t2b", columns);
 
         int[] selectedCols = new int[columns];
         for (int i = 0; i < columns; ++i){
             selectedCols[i] = i;
         }
 
+        ArrayList<byte[][]> rows = new ArrayList<byte[][]>();
         for (int i = 0; i < 1000; ++i) {
-            table.insert(selectedCols, makeValues(i, columns));
+            rows.add(makeValues(i, columns));
         }
+        batchTable.insertBatch(selectedCols, rows);
 
-        return table;
+        WhereClause wc = WhereClause.parse("WHERE c0 >= 1;");
+        QueryResult expected = wc.select(table, selectedCols);
+        QueryResult actual = wc.select(batchTable, selectedCols);
+        if (expected.getNumberOfRows() != actual.getNumberOfRows()){
+            return false;
+        }
+        for (int r = 0; r < expected.getNumberOfRows(); ++r){
+            for (int i = 0; i < columns; ++i){
+                if (!Arrays.equals(expected.getRow(r)[i], actual.getRow(r)[i])){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks aggregates over rows that leave the aggregated columns unset:
+     * c1 is indexed and c2 is not, both are set in every other row only.
+     */
+    public static boolean checkAggregates(HaloAdmin admin) throws IOException, BadSqlStatement {
+        if (admin.tableExists("t5")){
+            admin.dropTable("t5");
+        }
+        ColumnProperty[] cols = new ColumnProperty[]{
+                new ColumnProperty("c0", DataType.INT32, true),
+                new ColumnProperty("c1", DataType.INT32, true),
+                new ColumnProperty("c2", DataType.INT32, false)};
+        TableProperty prop = new TableProperty("t5", cols);
+        prop.setCreateDate(new Date());
+        prop.setOwner("wctest");
+        admin.createTable(prop);
+        HaloTable table = admin.openTable("t5");
+
+        for (int i = 0; i < 100; ++i) {
+            if (i % 2 == 0){
+                table.insert(new int[]{0, 1, 2}, new byte[][]{
+                        Bytes.toBytes(i + 1), Bytes.toBytes(i + 1), Bytes.toBytes(i + 1)});
+            } else {
+                table.insert(new int[]{0}, new byte[][]{Bytes.toBytes(i + 1)});
+            }
+        }
+
+        /* Values 1, 3, ..., 99 over the index, the primary table and a cursor */
+        WhereClause[] clauses = new WhereClause[]{new WhereClause(), WhereClause.parse("WHERE c0 >= 1;")};
+        for (WhereClause wc : clauses){
+            if (wc.aggregate(table, Aggregate.COUNT, null).getCount() != 100){
+                return false;
+            }
+            for (String column : new String[]{"c1", "c2"}){
+                if (wc.aggregate(table, Aggregate.COUNT, column).getCount() != 50
+                        || Bytes.toLong(wc.aggregate(table, Aggregate.SUM, column).getValue()) != 2500
+                        || Bytes.toInt(wc.aggregate(table, Aggregate.MIN, column).getValue()) != 1
+                        || Bytes.toInt(wc.aggregate(table, Aggregate.MAX, column).getValue()) != 99
+                        || Bytes.toDouble(wc.aggregate(table, Aggregate.AVG, column).getValue()) != 50.0
+                        || wc.countDistinct(table, column) != 50){
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     public static void main(String[] args) {
@@ -63,9 +148,20 @@ public class WhereClauseTest {
             HaloAdmin admin = new HaloAdmin(conf);
             HaloTable table = admin.openTable("t2");
 
+            if (!checkInsertBatch(admin, table)){
+                System.out.println("*** insertBatch test failed!");
+            }
+            if (!checkAggregates(admin)){
+                System.out.println("*** aggregate test failed!");
+            }
+
             int[] selectedCols = new int[1];
             selectedCols[0] = 0;
             WhereClause wc = WhereClause.parse("WHERE c0 BETWEEN 10 AND 110 and (c0 > 100 or c0 < 20);");
+            QueryPlan plan = wc.explain(table);
+            if (plan.getStrategy() != QueryPlan.INDEX_SCAN){
+                System.out.println("*** WhereClause test failed, unexpected plan:\n" + plan);
+            }
             RowSet rowSet = wc.applyToTable(table);
             QueryResult result = table.select(selectedCols, rowSet);
 